@@ -0,0 +1,66 @@
+package com.kodroid.engine;
+
+/**
+ * Definitions shared by the benchmarks. Each is a two state machine toggled by a single trigger so every trigger is a
+ * full state transition.
+ */
+final class BenchmarkDefinitions
+{
+    enum States
+    {
+        ONE, TWO
+    }
+
+    enum Triggers
+    {
+        TOGGLE, UNUSED
+    }
+
+    static final String STATE_ONE = "ONE";
+    static final String STATE_TWO = "TWO";
+    static final String TOGGLE = "TOGGLE";
+
+    private BenchmarkDefinitions()
+    {
+    }
+
+    static FsmDefinition<States, Triggers> enumToggle()
+    {
+        FsmDefinition<States, Triggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(States.ONE);
+        definition.defineCylinder(States.TWO);
+        definition.defineTrigger(Triggers.TOGGLE, States.ONE).setToState(States.TWO);
+        definition.defineTrigger(Triggers.TOGGLE, States.TWO).setToState(States.ONE);
+        return definition;
+    }
+
+    static FsmDefinition<String, String> stringToggle()
+    {
+        FsmDefinition<String, String> definition = new FsmDefinition<>();
+        definition.defineCylinder(STATE_ONE);
+        definition.defineCylinder(STATE_TWO);
+        definition.defineTrigger(TOGGLE, STATE_ONE).setToState(STATE_TWO);
+        definition.defineTrigger(TOGGLE, STATE_TWO).setToState(STATE_ONE);
+        return definition;
+    }
+
+    static FsmDefinition<States, Triggers> enumToggleWithActions(TransitionAction<States, Triggers, Object> action)
+    {
+        FsmDefinition<States, Triggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(States.ONE).setEnterAction(action).setExitAction(action);
+        definition.defineCylinder(States.TWO).setEnterAction(action).setExitAction(action);
+        definition.defineTrigger(Triggers.TOGGLE, States.ONE).setToState(States.TWO).setAction(action);
+        definition.defineTrigger(Triggers.TOGGLE, States.TWO).setToState(States.ONE).setAction(action);
+        return definition;
+    }
+
+    static FsmDefinition<States, Triggers> enumToggleWithData()
+    {
+        FsmDefinition<States, Triggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(States.ONE).setRequiredDataType(String.class);
+        definition.defineCylinder(States.TWO).setRequiredDataType(String.class);
+        definition.defineTrigger(Triggers.TOGGLE, States.ONE).setToState(States.TWO).setRequiredDataType(String.class);
+        definition.defineTrigger(Triggers.TOGGLE, States.TWO).setToState(States.ONE).setRequiredDataType(String.class);
+        return definition;
+    }
+}
@@ -0,0 +1,54 @@
+package com.kodroid.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded trigger throughput against a single machine: the lock free {@link ConcurrentFsmEngine} vs a
+ * {@link FsmEngine} guarded by a coarse external lock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContentionBenchmark
+{
+    private ConcurrentFsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mConcurrentEngine;
+    private FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mLockedEngine;
+
+    @Setup
+    public void setup()
+    {
+        mConcurrentEngine = new ConcurrentFsmEngine<>(BenchmarkDefinitions.enumToggle(), ConcurrentFsmEngine.RaceMode.RETRY).start(BenchmarkDefinitions.States.ONE);
+        mLockedEngine = new FsmEngine<>(BenchmarkDefinitions.enumToggle()).start(BenchmarkDefinitions.States.ONE);
+    }
+
+    @Benchmark
+    public boolean concurrentEngineTrigger()
+    {
+        return mConcurrentEngine.trigger(BenchmarkDefinitions.Triggers.TOGGLE, null);
+    }
+
+    @Benchmark
+    public void lockedEngineTrigger()
+    {
+        synchronized(mLockedEngine)
+        {
+            mLockedEngine.trigger(BenchmarkDefinitions.Triggers.TOGGLE, null);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.kodroid.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting a started engine, either by defining it from scratch or from a shared frozen definition.
+ *
+ * Run with the gc profiler (the default for the jmh task) - gc.alloc.rate.norm is the memory footprint per engine
+ * instance in bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DefinitionBenchmark
+{
+    private FsmDefinition<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mSharedDefinition;
+
+    @Setup
+    public void setup()
+    {
+        mSharedDefinition = BenchmarkDefinitions.enumToggle().freeze();
+    }
+
+    @Benchmark
+    public FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> defineAndStart()
+    {
+        FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> engine = new FsmEngine<>();
+        engine.defineCylinder(BenchmarkDefinitions.States.ONE);
+        engine.defineCylinder(BenchmarkDefinitions.States.TWO);
+        engine.defineTrigger(BenchmarkDefinitions.Triggers.TOGGLE, BenchmarkDefinitions.States.ONE).setToState(BenchmarkDefinitions.States.TWO);
+        engine.defineTrigger(BenchmarkDefinitions.Triggers.TOGGLE, BenchmarkDefinitions.States.TWO).setToState(BenchmarkDefinitions.States.ONE);
+        return engine.start(BenchmarkDefinitions.States.ONE);
+    }
+
+    @Benchmark
+    public FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> sharedDefinitionStart()
+    {
+        return new FsmEngine<>(mSharedDefinition).start(BenchmarkDefinitions.States.ONE);
+    }
+}
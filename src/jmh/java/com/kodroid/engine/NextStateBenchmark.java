@@ -0,0 +1,57 @@
+package com.kodroid.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FsmEngine#nextState(Object, Object)} and {@link FsmEngine#trigger(Object, Object)} throughput when states and
+ * triggers require data, so every call pays for the data type checks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NextStateBenchmark
+{
+    private static final String DATA = "data";
+
+    private FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mEngine;
+    private boolean mToggle;
+
+    @Setup
+    public void setup()
+    {
+        mEngine = new FsmEngine<>(BenchmarkDefinitions.enumToggleWithData()).start(BenchmarkDefinitions.States.ONE, DATA);
+    }
+
+    @Benchmark
+    public void nextStateWithData()
+    {
+        mToggle = !mToggle;
+        mEngine.nextState(mToggle ? BenchmarkDefinitions.States.TWO : BenchmarkDefinitions.States.ONE, DATA);
+    }
+
+    @Benchmark
+    public void triggerWithData()
+    {
+        mEngine.trigger(BenchmarkDefinitions.Triggers.TOGGLE, DATA);
+    }
+
+    @Benchmark
+    public DispatchResult tryNextStateDataMismatch()
+    {
+        return mEngine.tryNextState(BenchmarkDefinitions.States.TWO, null);
+    }
+}
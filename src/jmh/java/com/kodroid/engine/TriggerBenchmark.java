@@ -0,0 +1,81 @@
+package com.kodroid.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FsmEngine#trigger(Object, Object)} throughput for enum and non-enum keys, with and without actions and an
+ * observer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark
+{
+    private FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mEnumEngine;
+    private FsmEngine<String, String> mStringEngine;
+    private FsmEngine<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> mActionsAndObserverEngine;
+
+    @Setup
+    public void setup(final Blackhole blackhole)
+    {
+        mEnumEngine = new FsmEngine<>(BenchmarkDefinitions.enumToggle()).start(BenchmarkDefinitions.States.ONE);
+        mStringEngine = new FsmEngine<>(BenchmarkDefinitions.stringToggle()).start(BenchmarkDefinitions.STATE_ONE);
+
+        TransitionAction<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers, Object> action = new TransitionAction<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers, Object>()
+        {
+            @Override
+            public void run(Object inputData, TransitionContext<BenchmarkDefinitions.States, BenchmarkDefinitions.Triggers> context)
+            {
+                blackhole.consume(inputData);
+            }
+        };
+        mActionsAndObserverEngine = new FsmEngine<>(BenchmarkDefinitions.enumToggleWithActions(action)).start(BenchmarkDefinitions.States.ONE);
+        mActionsAndObserverEngine.addObserver(new FsmEngine.Observer<BenchmarkDefinitions.States>()
+        {
+            @Override
+            public void currentState(BenchmarkDefinitions.States state, Object optionalStateData)
+            {
+                blackhole.consume(state);
+            }
+        });
+    }
+
+    @Benchmark
+    public void triggerEnumKeys()
+    {
+        mEnumEngine.trigger(BenchmarkDefinitions.Triggers.TOGGLE, null);
+    }
+
+    @Benchmark
+    public void triggerNonEnumKeys()
+    {
+        mStringEngine.trigger(BenchmarkDefinitions.TOGGLE, null);
+    }
+
+    @Benchmark
+    public void triggerEnumKeysWithActionsAndObserver()
+    {
+        mActionsAndObserverEngine.trigger(BenchmarkDefinitions.Triggers.TOGGLE, null);
+    }
+
+    @Benchmark
+    public DispatchResult tryTriggerRejected()
+    {
+        return mEnumEngine.tryTrigger(BenchmarkDefinitions.Triggers.UNUSED, null);
+    }
+}
@@ -0,0 +1,233 @@
+package com.kodroid.engine;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link FsmEngine.Observer} decorator moving delivery off the transitioning thread, so transition latency does not
+ * depend on how slow the wrapped observer is.
+ *
+ * Notifications are copied into a ring buffer and delivered in order to the wrapped observer on the passed
+ * {@link Executor}, at most one delivery run at a time. The buffer doubles when full, so the wrapped observer sees
+ * every (state, data) pair however far it falls behind. Size the initial capacity for the expected backlog to avoid
+ * growing.
+ *
+ * Observers that render state rather than process every step, e.g. UI, can opt into
+ * {@link #conflating(FsmEngine.Observer, Executor)} instead, which only ever holds and delivers the latest pair. Each
+ * notification it overwrites is counted by {@link #getDroppedCount()}.
+ *
+ * The transitioning thread never waits for the wrapped observer, but it is not wait free. Each notification takes this
+ * observers monitor to write to the buffer, contended only by the delivery run copying out one entry at a time, and
+ * may hand a delivery run to {@link Executor#execute(Runnable)}, which blocks if the executor does.
+ *
+ * If the executor rejects a delivery run the notifications buffered at that point are discarded and counted by
+ * {@link #getDroppedCount()}, rather than failing the transition, and the next notification schedules a run again.
+ *
+ * Can be registered with any number of engines, including {@link ConcurrentFsmEngine}.
+ *
+ * @param <E> State enum type
+ */
+public class AsyncObserver<E> implements FsmEngine.Observer<E>
+{
+    /**
+     * Max notifications delivered per run before the run yields its executor thread
+     */
+    private static final int DRAIN_BATCH_SIZE = 64;
+
+    private final FsmEngine.Observer<E> mDelegate;
+    private final Executor mExecutor;
+    /**
+     * Overwrite the undelivered notification rather than grow
+     */
+    private final boolean mConflating;
+    /**
+     * Guarded by this, as are mData and mMask
+     */
+    private Object[] mStates;
+    private Object[] mData;
+    private int mMask;
+    /**
+     * Sequence of the next notification to deliver. Guarded by this.
+     */
+    private long mHead;
+    /**
+     * Sequence of the next notification to write. Guarded by this.
+     */
+    private long mTail;
+    private long mDroppedCount;
+    /**
+     * True while a delivery run is scheduled or running
+     */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mDrain = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * @param delegate observer notified on the executor
+     * @param executor
+     * @return observer only delivering the latest notification
+     */
+    public static <E> AsyncObserver<E> conflating(FsmEngine.Observer<E> delegate, Executor executor)
+    {
+        return new AsyncObserver<>(delegate, executor, 1, true);
+    }
+
+    /**
+     * @param delegate observer notified on the executor
+     * @param executor
+     * @param capacity initial undelivered notifications held before the buffer grows
+     */
+    public AsyncObserver(FsmEngine.Observer<E> delegate, Executor executor, int capacity)
+    {
+        this(delegate, executor, capacity, false);
+    }
+
+    private AsyncObserver(FsmEngine.Observer<E> delegate, Executor executor, int capacity, boolean conflating)
+    {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        mDelegate = delegate;
+        mExecutor = executor;
+        mConflating = conflating;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        mStates = new Object[size];
+        mData = new Object[size];
+        mMask = size - 1;
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    @Override
+    public void currentState(E state, Object optionalStateData)
+    {
+        synchronized(this)
+        {
+            if(mConflating && mTail != mHead)
+            {
+                int dropped = (int) (mHead & mMask);
+                mStates[dropped] = null;
+                mData[dropped] = null;
+                mHead++;
+                mDroppedCount++;
+            }
+            else if(mTail - mHead == mStates.length)
+            {
+                grow();
+            }
+            int index = (int) (mTail & mMask);
+            mStates[index] = state;
+            mData[index] = optionalStateData;
+            mTail++;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * @return number of notifications overwritten by {@link #conflating(FsmEngine.Observer, Executor)}, or discarded as
+     * the executor rejected them, before they were delivered
+     */
+    public synchronized long getDroppedCount()
+    {
+        return mDroppedCount;
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    /**
+     * Double the buffer, keeping each undelivered notification at its sequence. Called holding the lock.
+     */
+    private void grow()
+    {
+        int size = mStates.length << 1;
+        Object[] states = new Object[size];
+        Object[] data = new Object[size];
+        for(long sequence = mHead; sequence != mTail; sequence++)
+        {
+            states[(int) (sequence & (size - 1))] = mStates[(int) (sequence & mMask)];
+            data[(int) (sequence & (size - 1))] = mData[(int) (sequence & mMask)];
+        }
+        mStates = states;
+        mData = data;
+        mMask = size - 1;
+    }
+
+    private void scheduleDrain()
+    {
+        if(!mScheduled.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            mExecutor.execute(mDrain);
+        }
+        catch(RejectedExecutionException e)
+        {
+            //discard what is buffered while still marked scheduled so no other run delivers it meanwhile
+            synchronized(this)
+            {
+                for(; mHead != mTail; mHead++)
+                {
+                    int index = (int) (mHead & mMask);
+                    mStates[index] = null;
+                    mData[index] = null;
+                    mDroppedCount++;
+                }
+            }
+            mScheduled.set(false);
+
+            //a notification may have been written after the discard but seen mScheduled still set
+            if(!isEmpty())
+                scheduleDrain();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain()
+    {
+        try
+        {
+            for(int delivered = 0; delivered < DRAIN_BATCH_SIZE; delivered++)
+            {
+                E state;
+                Object data;
+                synchronized(this)
+                {
+                    if(mHead == mTail)
+                        return;
+                    int index = (int) (mHead & mMask);
+                    state = (E) mStates[index];
+                    data = mData[index];
+                    mStates[index] = null;
+                    mData[index] = null;
+                    mHead++;
+                }
+                mDelegate.currentState(state, data);
+            }
+        }
+        finally
+        {
+            mScheduled.set(false);
+
+            //a notification may have been written after the last read but seen mScheduled still set
+            if(!isEmpty())
+                scheduleDrain();
+        }
+    }
+
+    private synchronized boolean isEmpty()
+    {
+        return mHead == mTail;
+    }
+}
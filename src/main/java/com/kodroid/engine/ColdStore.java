@@ -0,0 +1,309 @@
+package com.kodroid.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Open addressing hash table of (machine key to state index and encoded data) held entirely in memory-mapped files,
+ * for machines paged out of a {@link FsmRegistry}. Costs no heap per machine.
+ *
+ * Each slot is fixed size:
+ *
+ * <pre>
+ * long   machine key
+ * short  state index + 1, 0 marks an empty slot
+ * short  data length, -1 for no data
+ * byte[] data, up to maxDataBytes
+ * </pre>
+ *
+ * Collisions are resolved with linear probing and removal shifts later entries back, so there are no tombstones. The
+ * table doubles into a new file once three quarters full. Slots are spread over mappings of at most
+ * {@link #MAX_CHUNK_BYTES} so tables can exceed the 2GB limit of a single mapping.
+ *
+ * Scratch storage only: each store creates uniquely named files, so several stores can share a directory, and deletes
+ * them on close. Files left by a crashed process are not cleaned up.
+ *
+ * Not thread safe.
+ */
+final class ColdStore implements Closeable
+{
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int HEADER_SIZE = 8 + 2 + 2;
+    private static final short EMPTY = 0;
+    private static final short NO_DATA = -1;
+    private static final String FILE_PREFIX = "cold-";
+    private static final String FILE_SUFFIX = ".tbl";
+
+    private final File mDirectory;
+    private final int mMaxDataBytes;
+    private final int mSlotSize;
+
+    private File mFile;
+    private MappedByteBuffer[] mChunks;
+    private int mChunkShift;
+    private long mChunkMask;
+    private long mMask;
+    private long mSize;
+
+    /**
+     * @param directory directory holding the table file, created if needed
+     * @param maxDataBytes max encoded data length per machine
+     * @throws IOException
+     */
+    ColdStore(File directory, int maxDataBytes) throws IOException
+    {
+        if(maxDataBytes < 0 || maxDataBytes > Short.MAX_VALUE)
+            throw new IllegalArgumentException("maxDataBytes must be between 0 and "+Short.MAX_VALUE);
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create "+directory);
+
+        mDirectory = directory;
+        mMaxDataBytes = maxDataBytes;
+        mSlotSize = HEADER_SIZE + maxDataBytes;
+        map(INITIAL_CAPACITY);
+    }
+
+    //=====================================================//
+    // Table operations
+    //=====================================================//
+
+    /**
+     * Insert or replace a machine
+     *
+     * @param key machine key
+     * @param stateIndex
+     * @param data encoded data, null for none
+     */
+    void put(long key, int stateIndex, byte[] data)
+    {
+        if(data != null && data.length > mMaxDataBytes)
+            throw new IllegalArgumentException("Encoded data of "+data.length+" bytes exceeds max of "+mMaxDataBytes);
+
+        long slot = find(key);
+        if(slot < 0)
+        {
+            if(mSize + 1 > (mMask + 1) / 4 * 3)
+                grow();
+            slot = emptySlotFor(key);
+            mSize++;
+        }
+        write(slot, key, stateIndex, data);
+    }
+
+    /**
+     * @param key
+     * @return slot holding the passed key, or -1
+     */
+    long find(long key)
+    {
+        for(long slot = hash(key) & mMask; ; slot = (slot + 1) & mMask)
+        {
+            MappedByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            if(chunk.getShort(offset + 8) == EMPTY)
+                return -1;
+            if(chunk.getLong(offset) == key)
+                return slot;
+        }
+    }
+
+    /**
+     * @param slot as returned from {@link #find(long)}
+     * @return state index of the machine in the passed slot
+     */
+    int stateIndexAt(long slot)
+    {
+        return chunk(slot).getShort(offset(slot) + 8) - 1;
+    }
+
+    /**
+     * @param slot as returned from {@link #find(long)}
+     * @return encoded data of the machine in the passed slot, null if none
+     */
+    byte[] dataAt(long slot)
+    {
+        MappedByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        int length = chunk.getShort(offset + 10);
+        if(length == NO_DATA)
+            return null;
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+            data[i] = chunk.get(offset + HEADER_SIZE + i);
+        return data;
+    }
+
+    /**
+     * Remove the machine in the passed slot, shifting back any later entries of its probe sequence
+     *
+     * @param slot as returned from {@link #find(long)}
+     */
+    void removeAt(long slot)
+    {
+        long hole = slot;
+        for(long next = (hole + 1) & mMask; !isEmpty(next); next = (next + 1) & mMask)
+        {
+            long home = hash(keyAt(next)) & mMask;
+            //the entry can fill the hole if the hole is no further from it than its home slot
+            if(((next - home) & mMask) >= ((next - hole) & mMask))
+            {
+                write(hole, keyAt(next), stateIndexAt(next), dataAt(next));
+                hole = next;
+            }
+        }
+        chunk(hole).putShort(offset(hole) + 8, EMPTY);
+        mSize--;
+    }
+
+    /**
+     * @return number of machines held
+     */
+    long size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Drop the table and delete its file
+     */
+    @Override
+    public void close()
+    {
+        mChunks = null;
+        //mappings are released once unreachable, deleting the file meanwhile is fine
+        if(mFile != null && !mFile.delete())
+            mFile.deleteOnExit();
+        mFile = null;
+    }
+
+    //=====================================================//
+    // Private
+    //=====================================================//
+
+    private long emptySlotFor(long key)
+    {
+        long slot = hash(key) & mMask;
+        while(!isEmpty(slot))
+            slot = (slot + 1) & mMask;
+        return slot;
+    }
+
+    private boolean isEmpty(long slot)
+    {
+        return chunk(slot).getShort(offset(slot) + 8) == EMPTY;
+    }
+
+    private long keyAt(long slot)
+    {
+        return chunk(slot).getLong(offset(slot));
+    }
+
+    private void write(long slot, long key, int stateIndex, byte[] data)
+    {
+        MappedByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        chunk.putLong(offset, key);
+        chunk.putShort(offset + 8, (short) (stateIndex + 1));
+        chunk.putShort(offset + 10, data == null ? NO_DATA : (short) data.length);
+        if(data != null)
+            for(int i = 0; i < data.length; i++)
+                chunk.put(offset + HEADER_SIZE + i, data[i]);
+    }
+
+    private MappedByteBuffer chunk(long slot)
+    {
+        return mChunks[(int) (slot >>> mChunkShift)];
+    }
+
+    private int offset(long slot)
+    {
+        return (int) (slot & mChunkMask) * mSlotSize;
+    }
+
+    /**
+     * Double the capacity, rehashing every entry into a new file
+     */
+    private void grow()
+    {
+        MappedByteBuffer[] oldChunks = mChunks;
+        int oldChunkShift = mChunkShift;
+        long oldChunkMask = mChunkMask;
+        long oldCapacity = mMask + 1;
+        File oldFile = mFile;
+        try
+        {
+            map(oldCapacity * 2);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        for(long slot = 0; slot < oldCapacity; slot++)
+        {
+            MappedByteBuffer chunk = oldChunks[(int) (slot >>> oldChunkShift)];
+            int offset = (int) (slot & oldChunkMask) * mSlotSize;
+            if(chunk.getShort(offset + 8) == EMPTY)
+                continue;
+            int length = chunk.getShort(offset + 10);
+            byte[] data = null;
+            if(length != NO_DATA)
+            {
+                data = new byte[length];
+                for(int i = 0; i < length; i++)
+                    data[i] = chunk.get(offset + HEADER_SIZE + i);
+            }
+            long key = chunk.getLong(offset);
+            write(emptySlotFor(key), key, chunk.getShort(offset + 8) - 1, data);
+        }
+
+        if(!oldFile.delete())
+            oldFile.deleteOnExit();
+    }
+
+    /**
+     * Map a new, empty table file with the passed capacity
+     *
+     * @param capacity power of two
+     */
+    private void map(long capacity) throws IOException
+    {
+        long slotsPerChunk = Math.min(capacity, Long.highestOneBit(MAX_CHUNK_BYTES / mSlotSize));
+        int chunkCount = (int) (capacity / slotsPerChunk);
+        long chunkBytes = slotsPerChunk * mSlotSize;
+
+        //unique per store and capacity, never touching the tables of other stores in the directory
+        File file = File.createTempFile(String.format("%s%020d-", FILE_PREFIX, capacity), FILE_SUFFIX, mDirectory);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            //new files read as zeros, i.e. all slots empty. Mappings remain valid once the channel is closed.
+            for(int i = 0; i < chunkCount; i++)
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * chunkBytes, chunkBytes);
+        }
+
+        mFile = file;
+        mChunks = chunks;
+        mChunkShift = Long.numberOfTrailingZeros(slotsPerChunk);
+        mChunkMask = slotsPerChunk - 1;
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Spread keys, which are often sequential, over the table
+     */
+    private static long hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
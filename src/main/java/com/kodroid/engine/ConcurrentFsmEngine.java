@@ -0,0 +1,294 @@
+package com.kodroid.engine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread safe, lock free variant of {@link FsmEngine}.
+ *
+ * The current state and its data are held as a single immutable pair which is moved with a compare-and-set. A
+ * transition is resolved and validated against the pair read at the start of the call and is only committed if no
+ * other thread has moved the machine in the meantime. What happens when that is not the case is decided by the
+ * {@link RaceMode} passed at construction.
+ *
+ * Triggers without a to-state commit nothing, so they are not atomic with respect to concurrent transitions. Their
+ * action is skipped (per the RaceMode) if the state has already moved on by the time it would run, but another thread
+ * may still commit a transition while it runs.
+ *
+ * Actions are run by the thread whose transition was committed, after the commit, in the same order as
+ * {@link FsmEngine} (trigger action, exit action, enter action). Each committed transition runs its actions exactly
+ * once, however actions belonging to transitions committed concurrently may run concurrently and so must not share
+ * mutable state. Observers are likewise notified after the commit and may see notifications out of order under
+ * contention.
+ *
+ * As actions may run concurrently, definitions used here should use {@link TransitionAction} rather than
+ * {@link FsmEngine.Action}, which holds its input data for the duration of the call.
+ *
+ * Transitions into a state without data do not allocate.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class ConcurrentFsmEngine<E, T>
+{
+    /**
+     * What to do when another thread moved the machine between a transition being resolved and committed.
+     */
+    public enum RaceMode
+    {
+        /**
+         * Resolve the transition again against the new state and retry until committed. A trigger may then be found
+         * to be invalid for the new state, in which case it throws as usual.
+         */
+        RETRY,
+        /**
+         * Abandon the transition and report it as not applied.
+         */
+        REJECT
+    }
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final RaceMode mRaceMode;
+    /**
+     * Current (state, data) pair, null until started
+     */
+    private final AtomicReference<State<E, T>> mState = new AtomicReference<>();
+    /**
+     * Preallocated data-less pairs indexed by {@link FsmEngine.Cylinder#index}
+     */
+    private final State<E, T>[] mEmptyStates;
+    private final List<FsmEngine.Observer<E>> mObservers = new CopyOnWriteArrayList<>();
+    /**
+     * Passed to actions, stateless so shared by all threads
+     */
+    private final TransitionContext<E, T> mContext = new TransitionContext<E, T>()
+    {
+        @Override
+        public E getCurrentState()
+        {
+            return ConcurrentFsmEngine.this.getCurrentState();
+        }
+
+        @Override
+        public void nextState(E state, Object optionalInputData)
+        {
+            ConcurrentFsmEngine.this.nextState(state, optionalInputData);
+        }
+
+        @Override
+        public void trigger(T triggerEnum, Object optionalInputData)
+        {
+            ConcurrentFsmEngine.this.trigger(triggerEnum, optionalInputData);
+        }
+    };
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param raceMode behaviour when transitions race
+     */
+    public ConcurrentFsmEngine(FsmDefinition<E, T> definition, RaceMode raceMode)
+    {
+        mDefinition = definition.freeze();
+        mRaceMode = raceMode;
+        mEmptyStates = newStateArray(mDefinition.getCylinderIndexCount());
+        for(int i = 0; i < mEmptyStates.length; i++)
+        {
+            FsmEngine.Cylinder<E, T> cylinder = mDefinition.cylinderAt(i);
+            if(cylinder != null)
+                mEmptyStates[i] = new State<>(cylinder, null);
+        }
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Calls through to {@link #start(Object, Object)} will null as the optionalInputData
+     */
+    public ConcurrentFsmEngine<E, T> start(E startingState)
+    {
+        return start(startingState, null);
+    }
+
+    /**
+     * Start this FSM at the passed in state. Can only be called once.
+     *
+     * @param startingState
+     * @param optionalInputData
+     * @return
+     */
+    public ConcurrentFsmEngine<E, T> start(E startingState, Object optionalInputData)
+    {
+        State<E, T> next = stateFor(startingState, mDefinition.cylinderFor(startingState), optionalInputData);
+        if(!mState.compareAndSet(null, next))
+            throw new IllegalStateException("Already started!");
+        afterTransition(null, next);
+        return this;
+    }
+
+    /**
+     * Calls {@link #nextState(Object, Object)} with null input data.
+     */
+    public boolean nextState(E state)
+    {
+        return nextState(state, null);
+    }
+
+    /**
+     * Switch to next state. See {@link FsmEngine#nextState(Object, Object)}.
+     *
+     * @param state state to move to
+     * @param optionalInputData can be null. Will be passed to next states {@link FsmEngine.Action} classes.
+     * @return true if the transition was committed, false if it lost a race in {@link RaceMode#REJECT} mode
+     */
+    public boolean nextState(E state, Object optionalInputData)
+    {
+        State<E, T> next = stateFor(state, mDefinition.cylinderFor(state), optionalInputData);
+        while(true)
+        {
+            State<E, T> current = requireStarted();
+            if(mState.compareAndSet(current, next))
+            {
+                afterTransition(current, next);
+                return true;
+            }
+            if(mRaceMode == RaceMode.REJECT)
+                return false;
+        }
+    }
+
+    /**
+     * Incoming trigger event. See {@link FsmEngine#trigger(Object, Object)}.
+     *
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     * @return true if the trigger was applied, false if it lost a race in {@link RaceMode#REJECT} mode
+     */
+    public boolean trigger(T triggerEnum, Object optionalInputData)
+    {
+        while(true)
+        {
+            State<E, T> current = requireStarted();
+
+            FsmEngine.Trigger<E, T> trigger = mDefinition.triggerFor(current.cylinder, triggerEnum);
+            if(trigger == null)
+                trigger = mDefinition.requireTrigger(current.cylinder, triggerEnum);
+            trigger = trigger.requireMatch(optionalInputData);
+            trigger.checkInputData(optionalInputData);
+
+            if(trigger.toState == null)
+            {
+                //no state transition to commit, best effort check the state it was validated against is still current
+                if(mState.get() == current)
+                {
+                    trigger.runTransitionAction(optionalInputData, mContext);
+                    return true;
+                }
+                if(mRaceMode == RaceMode.REJECT)
+                    return false;
+                continue;
+            }
+
+            State<E, T> next = stateFor(trigger.toState, trigger.toCylinder, optionalInputData);
+            if(mState.compareAndSet(current, next))
+            {
+                trigger.runTransitionAction(optionalInputData, mContext);
+                afterTransition(current, next);
+                return true;
+            }
+            if(mRaceMode == RaceMode.REJECT)
+                return false;
+        }
+    }
+
+    /**
+     * @return current state, or null if not started
+     */
+    public E getCurrentState()
+    {
+        State<E, T> current = mState.get();
+        return current == null ? null : current.cylinder.stateEnum;
+    }
+
+    /**
+     * @param observer will be notified instantly if the fsm has some state.
+     */
+    public void addObserver(FsmEngine.Observer<E> observer)
+    {
+        if(observer == null)
+            return;
+
+        mObservers.add(observer);
+        State<E, T> current = mState.get();
+        if(current != null)
+            observer.currentState(current.cylinder.stateEnum, current.data);
+    }
+
+    /**
+     * @param observer
+     * @return true if the observer was registered
+     */
+    public boolean removeObserver(FsmEngine.Observer<E> observer)
+    {
+        return mObservers.remove(observer);
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private State<E, T> requireStarted()
+    {
+        State<E, T> current = mState.get();
+        if(current == null)
+            throw new IllegalStateException("Not started!");
+        return current;
+    }
+
+    /**
+     * Validate and build the pair for a state about to be entered
+     */
+    private State<E, T> stateFor(E state, FsmEngine.Cylinder<E, T> cylinder, Object optionalInputData)
+    {
+        if(cylinder == null)
+            throw new NullPointerException(state.getClass().getName()+"."+state.toString()+" does not exist in map!");
+        cylinder.checkInputData(optionalInputData);
+        return optionalInputData == null ? mEmptyStates[cylinder.index] : new State<>(cylinder, optionalInputData);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, T> State<E, T>[] newStateArray(int length)
+    {
+        return (State<E, T>[]) new State<?, ?>[length];
+    }
+
+    /**
+     * Run exit / enter actions and notify the observers for a committed transition
+     */
+    private void afterTransition(State<E, T> previous, State<E, T> next)
+    {
+        if(previous != null)
+            FsmEngine.runExitActions(previous.cylinder, next.cylinder, previous.data, mContext);
+        FsmEngine.runEnterActions(previous == null ? null : previous.cylinder, next.cylinder, next.data, mContext);
+
+        for(FsmEngine.Observer<E> observer : mObservers)
+            observer.currentState(next.cylinder.stateEnum, next.data);
+    }
+
+    /**
+     * Immutable (state, data) pair
+     */
+    private static final class State<E, T>
+    {
+        final FsmEngine.Cylinder<E, T> cylinder;
+        final Object data;
+
+        State(FsmEngine.Cylinder<E, T> cylinder, Object data)
+        {
+            this.cylinder = cylinder;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.kodroid.engine;
+
+/**
+ * Converts state data to and from bytes, for the persistence features ({@link FsmJournal} and {@link FsmSnapshot}).
+ *
+ * Implementations must be able to decode anything they encode and should be thread safe.
+ */
+public interface DataCodec
+{
+    /**
+     * @param data non-null state data
+     * @return encoded data
+     */
+    byte[] encode(Object data);
+
+    /**
+     * @param bytes as returned from {@link #encode(Object)}
+     * @return decoded data
+     */
+    Object decode(byte[] bytes);
+}
@@ -0,0 +1,21 @@
+package com.kodroid.engine;
+
+/**
+ * Builds input data on demand, for payloads which are expensive to build and may never be read. See
+ * {@link FsmEngine#triggerLazy(Object, Class, DataSupplier)} / {@link FsmEngine#nextStateLazy(Object, Class, DataSupplier)}.
+ *
+ * Only {@link FsmEngine.Action}s read the data on demand. Observers and {@link TransitionAction}s are always passed the
+ * built data, so the supplier is called on every transition of an engine with any observer registered, or whose
+ * transition runs a TransitionAction, whether or not they use it. Laziness only pays off on engines without either.
+ *
+ * @param <D> Input data type
+ */
+public interface DataSupplier<D>
+{
+    /**
+     * Called at most once per event, on the engines thread
+     *
+     * @return the data, must not be null
+     */
+    D get();
+}
@@ -0,0 +1,48 @@
+package com.kodroid.engine;
+
+/**
+ * Assignability check of input data against a required data type, see
+ * {@link FsmEngine.Trigger#setRequiredDataType(Class)} / {@link FsmEngine.Cylinder#setRequiredDataType(Class)}.
+ *
+ * The verdict for each concrete data class is computed with {@link Class#isAssignableFrom(Class)} once and then cached
+ * against that class via a {@link ClassValue}, so dispatching a subtype costs a lookup rather than a hierarchy walk.
+ *
+ * Thread safe.
+ */
+final class DataTypeCheck
+{
+    private final Class<?> mRequiredType;
+    /**
+     * Per concrete data class verdict
+     */
+    private final ClassValue<Boolean> mVerdicts = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> dataType)
+        {
+            return mRequiredType.isAssignableFrom(dataType);
+        }
+    };
+
+    /**
+     * @param requiredType
+     */
+    DataTypeCheck(Class<?> requiredType)
+    {
+        mRequiredType = requiredType;
+    }
+
+    /**
+     * @param data can be null or {@link LazyData}
+     * @return true if the data is non null and an instance of the required type
+     */
+    boolean accepts(Object data)
+    {
+        if(data == null)
+            return false;
+        //lazy data is checked by its declared type, without being evaluated
+        Class<?> dataType = LazyData.typeOf(data);
+        //exact match is the common case, skip the lookup
+        return dataType == mRequiredType || mVerdicts.get(dataType);
+    }
+}
@@ -0,0 +1,39 @@
+package com.kodroid.engine;
+
+/**
+ * Outcome of {@link FsmEngine#tryTrigger(Object, Object)} / {@link FsmEngine#tryNextState(Object, Object)}.
+ *
+ * Returned instead of throwing so rejections cost no stack trace or message building.
+ */
+public enum DispatchResult
+{
+    /**
+     * The trigger / state change was applied
+     */
+    ACCEPTED,
+    /**
+     * The trigger is defined, but not for the current state
+     */
+    NO_TRANSITION_FOR_STATE,
+    /**
+     * No Trigger has been defined for the trigger event at all
+     */
+    UNKNOWN_TRIGGER,
+    /**
+     * The passed data does not match the required data type of the Trigger or the state to be entered
+     */
+    DATA_TYPE_MISMATCH,
+    /**
+     * The state to be entered has not been defined
+     */
+    UNKNOWN_STATE,
+    /**
+     * The trigger is only defined with guards for the current state and none accepted the passed data
+     */
+    NO_GUARD_MATCHED,
+    /**
+     * Requested from inside an action in run to completion mode, so queued to be applied once the current transition
+     * completes. See {@link FsmEngine#setRunToCompletion(boolean)}.
+     */
+    QUEUED
+}
@@ -0,0 +1,101 @@
+package com.kodroid.engine;
+
+/**
+ * FIFO ring buffer of trigger / state change events raised from inside actions, for {@link FsmEngine} run to
+ * completion mode. Held as parallel preallocated arrays so queueing an event does not allocate. Grows (doubling) only
+ * if more events are raised by a single transition than its capacity.
+ *
+ * Not thread safe.
+ */
+final class EventQueue
+{
+    static final byte TRIGGER = 0;
+    static final byte TRY_TRIGGER = 1;
+    static final byte NEXT_STATE = 2;
+    static final byte TRY_NEXT_STATE = 3;
+
+    private byte[] mKinds;
+    private Object[] mEvents;
+    private Object[] mData;
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param capacity initial capacity, rounded up to a power of two
+     */
+    EventQueue(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        mKinds = new byte[size];
+        mEvents = new Object[size];
+        mData = new Object[size];
+    }
+
+    void add(byte kind, Object event, Object data)
+    {
+        if(mSize == mKinds.length)
+            grow();
+        int tail = (mHead + mSize) & (mKinds.length - 1);
+        mKinds[tail] = kind;
+        mEvents[tail] = event;
+        mData[tail] = data;
+        mSize++;
+    }
+
+    boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+    byte peekKind()
+    {
+        return mKinds[mHead];
+    }
+
+    Object peekEvent()
+    {
+        return mEvents[mHead];
+    }
+
+    Object peekData()
+    {
+        return mData[mHead];
+    }
+
+    /**
+     * Remove the head event, releasing its references
+     */
+    void remove()
+    {
+        mEvents[mHead] = null;
+        mData[mHead] = null;
+        mHead = (mHead + 1) & (mKinds.length - 1);
+        mSize--;
+    }
+
+    void clear()
+    {
+        while(mSize > 0)
+            remove();
+        mHead = 0;
+    }
+
+    private void grow()
+    {
+        int capacity = mKinds.length;
+        byte[] kinds = new byte[capacity << 1];
+        Object[] events = new Object[capacity << 1];
+        Object[] data = new Object[capacity << 1];
+        for(int i = 0; i < mSize; i++)
+        {
+            int index = (mHead + i) & (capacity - 1);
+            kinds[i] = mKinds[index];
+            events[i] = mEvents[index];
+            data[i] = mData[index];
+        }
+        mKinds = kinds;
+        mEvents = events;
+        mData = data;
+        mHead = 0;
+    }
+}
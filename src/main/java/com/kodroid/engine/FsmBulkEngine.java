@@ -0,0 +1,501 @@
+package com.kodroid.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Drives a large, fixed population of machines which all share the same {@link FsmDefinition}.
+ *
+ * Rather than one {@link FsmEngine} object per machine the current state of every machine is held in a single
+ * primitive column indexed by machine id, costing 1 byte per machine for definitions with up to 255 states and 2
+ * bytes per machine for up to 65535 states. The column can optionally live off-heap in a direct {@link ByteBuffer}.
+ *
+ * Cylinder enter / exit actions and Trigger actions are run exactly as they would be by {@link FsmEngine}. As no
+ * per-machine objects are kept, state data is not retained once a state has been entered: enter and trigger actions
+ * receive the data passed in but exit actions always receive null.
+ *
+ * Not thread safe.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class FsmBulkEngine<E, T>
+{
+    /**
+     * Stored value for a machine that has not been started. Started machines store {@link FsmEngine.Cylinder#index} + 1
+     */
+    private static final int NOT_STARTED = 0;
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final StateStore mStates;
+    /**
+     * Passed to actions, pointed at the machine being transitioned for the duration of each action
+     */
+    private final MachineContext mContext = new MachineContext();
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param machineCount number of machines, ids run from 0 to machineCount - 1
+     */
+    public FsmBulkEngine(FsmDefinition<E, T> definition, int machineCount)
+    {
+        this(definition, machineCount, false);
+    }
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param machineCount number of machines, ids run from 0 to machineCount - 1
+     * @param offHeap true to hold machine states in a direct {@link ByteBuffer}
+     */
+    public FsmBulkEngine(FsmDefinition<E, T> definition, int machineCount, boolean offHeap)
+    {
+        mDefinition = definition.freeze();
+
+        int bytesPerMachine = bytesPerMachine(mDefinition);
+        if(offHeap)
+            mStates = new ByteBufferStore(machineCount, bytesPerMachine);
+        else if(bytesPerMachine == 1)
+            mStates = new ByteArrayStore(machineCount);
+        else
+            mStates = new ShortArrayStore(machineCount);
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Calls through to {@link #start(int, Object, Object)} will null as the optionalInputData
+     */
+    public void start(int machineId, E startingState)
+    {
+        start(machineId, startingState, null);
+    }
+
+    /**
+     * Start the passed machine at the passed state, running the states enter action.
+     *
+     * @param machineId
+     * @param startingState
+     * @param optionalInputData can be null
+     */
+    public void start(int machineId, E startingState, Object optionalInputData)
+    {
+        transitionTo(machineId, startingState, mDefinition.cylinderFor(startingState), optionalInputData);
+    }
+
+    /**
+     * Start every machine at the passed state, running the states enter action for each.
+     *
+     * @param startingState
+     */
+    public void startAll(E startingState)
+    {
+        FsmEngine.Cylinder<E, T> cylinder = mDefinition.cylinderFor(startingState);
+        for(int machineId = 0, count = mStates.size(); machineId < count; machineId++)
+            transitionTo(machineId, startingState, cylinder, null);
+    }
+
+    /**
+     * Calls {@link #nextState(int, Object, Object)} with null input data.
+     */
+    public void nextState(int machineId, E state)
+    {
+        nextState(machineId, state, null);
+    }
+
+    /**
+     * Switch the passed machine to the next state. See {@link FsmEngine#nextState(Object, Object)}.
+     *
+     * @param machineId
+     * @param state state to move to
+     * @param optionalInputData can be null. Will be passed to next states {@link FsmEngine.Action} classes.
+     */
+    public void nextState(int machineId, E state, Object optionalInputData)
+    {
+        requireStarted(machineId);
+        transitionTo(machineId, state, mDefinition.cylinderFor(state), optionalInputData);
+    }
+
+    /**
+     * Incoming trigger event for the passed machine. See {@link FsmEngine#trigger(Object, Object)}.
+     *
+     * @param machineId
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     */
+    public void trigger(int machineId, T triggerEnum, Object optionalInputData)
+    {
+        FsmEngine.Cylinder<E, T> currentCylinder = requireStarted(machineId);
+
+        FsmEngine.Trigger<E, T> trigger = mDefinition.triggerFor(currentCylinder, triggerEnum);
+        if(trigger == null)
+            trigger = mDefinition.requireTrigger(currentCylinder, triggerEnum);
+        trigger = trigger.requireMatch(optionalInputData);
+
+        //reject before any action runs, as FsmEngine does
+        trigger.checkInputData(optionalInputData);
+        if(trigger.toState != null)
+            checkTarget(trigger.toState, trigger.toCylinder, optionalInputData);
+
+        int outerMachineId = mContext.machineId;
+        mContext.machineId = machineId;
+        try
+        {
+            trigger.runTransitionAction(optionalInputData, mContext);
+        }
+        finally
+        {
+            mContext.machineId = outerMachineId;
+        }
+
+        if(trigger.toState != null)
+            transitionTo(machineId, trigger.toState, trigger.toCylinder, optionalInputData);
+    }
+
+    /**
+     * Fire the same trigger, with no data, at each of the passed machines in order.
+     *
+     * @param machineIds
+     * @param triggerEnum
+     */
+    public void triggerAll(int[] machineIds, T triggerEnum)
+    {
+        for(int machineId : machineIds)
+            trigger(machineId, triggerEnum, null);
+    }
+
+    /**
+     * @param machineId
+     * @return current state of the passed machine, or null if it has not been started
+     */
+    public E getState(int machineId)
+    {
+        int value = mStates.get(machineId);
+        return value == NOT_STARTED ? null : mDefinition.cylinderAt(value - 1).stateEnum;
+    }
+
+    /**
+     * @return number of machines held
+     */
+    public int getMachineCount()
+    {
+        return mStates.size();
+    }
+
+    /**
+     * @return the definition backing this engine
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
+    }
+
+    /**
+     * @return column holding all machine states, for {@link FsmSnapshot}
+     */
+    StateStore getStates()
+    {
+        return mStates;
+    }
+
+    /**
+     * @param definition frozen definition
+     * @return bytes needed to store the state of one machine, i.e. {@link FsmEngine.Cylinder#index} + 1
+     */
+    static int bytesPerMachine(FsmDefinition<?, ?> definition)
+    {
+        int stateValues = definition.getCylinderIndexCount() + 1;
+        if(stateValues <= 0xFF + 1)
+            return 1;
+        else if(stateValues <= 0xFFFF + 1)
+            return 2;
+        else
+            throw new IllegalArgumentException("Too many states for bulk storage: "+(stateValues - 1));
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private FsmEngine.Cylinder<E, T> requireStarted(int machineId)
+    {
+        int value = mStates.get(machineId);
+        if(value == NOT_STARTED)
+            throw new IllegalStateException("Machine "+machineId+" not started!");
+        return mDefinition.cylinderAt(value - 1);
+    }
+
+    /**
+     * Exit the machines current state (if any) and enter the passed one.
+     */
+    private void transitionTo(int machineId, E state, FsmEngine.Cylinder<E, T> nextCylinder, Object optionalInputData)
+    {
+        checkTarget(state, nextCylinder, optionalInputData);
+
+        int outerMachineId = mContext.machineId;
+        mContext.machineId = machineId;
+        try
+        {
+            int value = mStates.get(machineId);
+            FsmEngine.Cylinder<E, T> currentCylinder = value == NOT_STARTED ? null : mDefinition.cylinderAt(value - 1);
+            if(currentCylinder != null)
+                FsmEngine.runExitActions(currentCylinder, nextCylinder, null, mContext);
+
+            mStates.set(machineId, nextCylinder.index + 1);
+            FsmEngine.runEnterActions(currentCylinder, nextCylinder, optionalInputData, mContext);
+        }
+        finally
+        {
+            mContext.machineId = outerMachineId;
+        }
+    }
+
+    /**
+     * Throw if the passed state does not exist or does not accept the passed data
+     */
+    private static <E, T> void checkTarget(E state, FsmEngine.Cylinder<E, T> nextCylinder, Object optionalInputData)
+    {
+        if(nextCylinder == null)
+            throw new NullPointerException(state.getClass().getName()+"."+state.toString()+" does not exist in map!");
+        nextCylinder.checkInputData(optionalInputData);
+    }
+
+    //=====================================================//
+    // Action Context
+    //=====================================================//
+
+    /**
+     * {@link TransitionContext} for a single machine of this engine. Actions can cast to this type to find
+     * out which machine they are running for.
+     */
+    public final class MachineContext implements TransitionContext<E, T>
+    {
+        private int machineId = -1;
+
+        private MachineContext()
+        {
+        }
+
+        /**
+         * @return id of the machine the current action is running for
+         */
+        public int getMachineId()
+        {
+            return machineId;
+        }
+
+        @Override
+        public E getCurrentState()
+        {
+            return getState(machineId);
+        }
+
+        @Override
+        public void nextState(E state, Object optionalInputData)
+        {
+            FsmBulkEngine.this.nextState(machineId, state, optionalInputData);
+        }
+
+        @Override
+        public void trigger(T triggerEnum, Object optionalInputData)
+        {
+            FsmBulkEngine.this.trigger(machineId, triggerEnum, optionalInputData);
+        }
+    }
+
+    //=====================================================//
+    // State Storage
+    //=====================================================//
+
+    /**
+     * Column of unsigned per-machine state values. Serialises as big-endian values of {@link #bytesPerMachine()} bytes.
+     */
+    abstract static class StateStore
+    {
+        abstract int get(int machineId);
+
+        abstract void set(int machineId, int value);
+
+        abstract int size();
+
+        abstract int bytesPerMachine();
+
+        abstract void writeTo(WritableByteChannel out) throws IOException;
+
+        abstract void readFrom(ReadableByteChannel in) throws IOException;
+    }
+
+    static final class ByteArrayStore extends StateStore
+    {
+        private final byte[] values;
+
+        ByteArrayStore(int machineCount)
+        {
+            values = new byte[machineCount];
+        }
+
+        @Override
+        int get(int machineId)
+        {
+            return values[machineId] & 0xFF;
+        }
+
+        @Override
+        void set(int machineId, int value)
+        {
+            values[machineId] = (byte) value;
+        }
+
+        @Override
+        int size()
+        {
+            return values.length;
+        }
+
+        @Override
+        int bytesPerMachine()
+        {
+            return 1;
+        }
+
+        @Override
+        void writeTo(WritableByteChannel out) throws IOException
+        {
+            FsmSnapshot.writeFully(out, ByteBuffer.wrap(values));
+        }
+
+        @Override
+        void readFrom(ReadableByteChannel in) throws IOException
+        {
+            FsmSnapshot.readFully(in, ByteBuffer.wrap(values));
+        }
+    }
+
+    static final class ShortArrayStore extends StateStore
+    {
+        private final short[] values;
+
+        ShortArrayStore(int machineCount)
+        {
+            values = new short[machineCount];
+        }
+
+        @Override
+        int get(int machineId)
+        {
+            return values[machineId] & 0xFFFF;
+        }
+
+        @Override
+        void set(int machineId, int value)
+        {
+            values[machineId] = (short) value;
+        }
+
+        @Override
+        int size()
+        {
+            return values.length;
+        }
+
+        @Override
+        int bytesPerMachine()
+        {
+            return 2;
+        }
+
+        @Override
+        void writeTo(WritableByteChannel out) throws IOException
+        {
+            ByteBuffer chunk = ByteBuffer.allocate(FsmSnapshot.CHUNK_SIZE);
+            for(int offset = 0; offset < values.length; offset += chunk.capacity() / 2)
+            {
+                chunk.clear();
+                int length = Math.min(chunk.capacity() / 2, values.length - offset);
+                chunk.asShortBuffer().put(values, offset, length);
+                chunk.limit(length * 2);
+                FsmSnapshot.writeFully(out, chunk);
+            }
+        }
+
+        @Override
+        void readFrom(ReadableByteChannel in) throws IOException
+        {
+            ByteBuffer chunk = ByteBuffer.allocate(FsmSnapshot.CHUNK_SIZE);
+            for(int offset = 0; offset < values.length; offset += chunk.capacity() / 2)
+            {
+                chunk.clear();
+                int length = Math.min(chunk.capacity() / 2, values.length - offset);
+                chunk.limit(length * 2);
+                FsmSnapshot.readFully(in, chunk);
+                chunk.flip();
+                chunk.asShortBuffer().get(values, offset, length);
+            }
+        }
+    }
+
+    static final class ByteBufferStore extends StateStore
+    {
+        private final ByteBuffer values;
+        private final int bytesPerMachine;
+        private final int size;
+
+        ByteBufferStore(int machineCount, int bytesPerMachine)
+        {
+            this.values = ByteBuffer.allocateDirect(machineCount * bytesPerMachine);
+            this.bytesPerMachine = bytesPerMachine;
+            this.size = machineCount;
+        }
+
+        @Override
+        int get(int machineId)
+        {
+            if(machineId < 0 || machineId >= size)
+                throw new ArrayIndexOutOfBoundsException(machineId);
+            return bytesPerMachine == 1
+                    ? values.get(machineId) & 0xFF
+                    : values.getShort(machineId << 1) & 0xFFFF;
+        }
+
+        @Override
+        void set(int machineId, int value)
+        {
+            if(bytesPerMachine == 1)
+                values.put(machineId, (byte) value);
+            else
+                values.putShort(machineId << 1, (short) value);
+        }
+
+        @Override
+        int size()
+        {
+            return size;
+        }
+
+        @Override
+        int bytesPerMachine()
+        {
+            return bytesPerMachine;
+        }
+
+        @Override
+        void writeTo(WritableByteChannel out) throws IOException
+        {
+            //straight from the off-heap column, no copy into the heap
+            ByteBuffer column = values.duplicate();
+            column.clear();
+            FsmSnapshot.writeFully(out, column);
+        }
+
+        @Override
+        void readFrom(ReadableByteChannel in) throws IOException
+        {
+            ByteBuffer column = values.duplicate();
+            column.clear();
+            FsmSnapshot.readFully(in, column);
+        }
+    }
+}
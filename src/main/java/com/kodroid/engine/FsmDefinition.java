@@ -0,0 +1,644 @@
+package com.kodroid.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The states and triggers of a Finite State Machine, independent of any running instance.
+ *
+ * Defined once via {@link #defineCylinder(Object)} and {@link #defineTrigger(Object, Object)} and then frozen via
+ * {@link #freeze()}. Once frozen a definition is immutable and can be shared (across threads) by any number of
+ * {@link FsmEngine} instances, each of which only holds its current state, data and observers.
+ *
+ * <pre>
+ * FsmDefinition&lt;CallStates, CallTriggers&gt; definition = new FsmDefinition&lt;&gt;();
+ * definition.defineCylinder(CallStates.OFF_CALL);
+ * definition.defineCylinder(CallStates.ON_CALL);
+ * definition.defineTrigger(CallTriggers.START_CALL, CallStates.OFF_CALL).setToState(CallStates.ON_CALL);
+ * definition.freeze();
+ *
+ * //per session
+ * FsmEngine&lt;CallStates, CallTriggers&gt; fsm = new FsmEngine&lt;&gt;(definition).start(CallStates.OFF_CALL);
+ * </pre>
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events. Use {@link FsmEngine.NoTriggers} if there are no external triggers.
+ */
+public class FsmDefinition<E, T>
+{
+    //=====================================================//
+    // Definition Fields
+    //=====================================================//
+
+    /**
+     * The states of this fsm, in definition order
+     */
+    private final Map<E, FsmEngine.Cylinder<E, T>> mCylinderMap = new LinkedHashMap<>();
+    /**
+     * Map of Trigger-events -> Map of fromStates -> Triggers
+     */
+    private final Map<T, Map<E, FsmEngine.Trigger<E, T>>> mTriggerMap = new HashMap<>();
+    /**
+     * Map of Trigger-events -> Triggers defined via {@link #defineTriggerFromAny(Object)}
+     */
+    private final Map<T, FsmEngine.Trigger<E, T>> mAnyStateTriggerMap = new HashMap<>();
+    /**
+     * Map of Trigger-events -> Map of listed fromStates -> Triggers defined via
+     * {@link #defineTriggerFromStates(Object, Object[])}. One Trigger instance is held under each of its listed states.
+     */
+    private final Map<T, Map<E, FsmEngine.Trigger<E, T>>> mFromStatesTriggerMap = new HashMap<>();
+
+    //=====================================================//
+    // Frozen Fields
+    //=====================================================//
+
+    /**
+     * All states indexed by {@link FsmEngine.Cylinder#index}. Built by {@link #freeze()}.
+     */
+    private FsmEngine.Cylinder<E, T>[] mCylinders;
+    /**
+     * Dense table of states indexed by state ordinal. Built by {@link #freeze()} when the state type is an enum, null
+     * otherwise (in which case {@link #mCylinderMap} is used).
+     */
+    private FsmEngine.Cylinder<E, T>[] mCylinderTable;
+    /**
+     * Dense table of Triggers indexed by [fromState ordinal][trigger ordinal]. Built by {@link #freeze()} when both the
+     * state and trigger types are enums, null otherwise (in which case {@link #mTriggerMap} is used).
+     */
+    private FsmEngine.Trigger<E, T>[][] mTriggerTable;
+    /**
+     * All trigger events indexed by trigger index. Enum trigger events are indexed by ordinal, others by an arbitrary
+     * but fixed order. Built by {@link #freeze()}.
+     */
+    private T[] mTriggerEvents;
+    /**
+     * Trigger event -> trigger index, null if trigger events are enums. Built by {@link #freeze()}.
+     */
+    private Map<T, Integer> mTriggerIndexMap;
+    /**
+     * Volatile so a definition frozen on one thread is visible as frozen on all others.
+     */
+    private volatile boolean mFrozen;
+
+    //=====================================================//
+    // Builder
+    //=====================================================//
+
+    /**
+     * Define a new Cylinder representing a state of this FSM
+     * @return
+     */
+    public FsmEngine.Cylinder<E, T> defineCylinder(E stateEnum)
+    {
+        checkNotFrozen();
+        FsmEngine.Cylinder<E, T> newCylinder = new FsmEngine.Cylinder<>(this, stateEnum);
+        mCylinderMap.put(stateEnum, newCylinder);
+        return newCylinder;
+    }
+
+    /**
+     * Define a new Trigger representing an input event to this FSM
+     *
+     * @param onTrigger
+     * @param fromState
+     */
+    public FsmEngine.Trigger<E, T> defineTrigger(T onTrigger, E fromState)
+    {
+        return defineTrigger(onTrigger, fromState, null);
+    }
+
+    /**
+     * Define a new Trigger which only handles the event when the passed guard accepts its input data. Any number of
+     * guarded Triggers (plus one unguarded fallback) can be defined per event/fromState combo. On each event the guards
+     * are evaluated in definition order and the first Trigger whose guard accepts handles it, otherwise the fallback
+     * does. If none does the event is rejected with {@link DispatchResult#NO_GUARD_MATCHED}.
+     *
+     * @param onTrigger
+     * @param fromState
+     * @param guard can be null, which is the same as {@link #defineTrigger(Object, Object)}
+     */
+    @SuppressWarnings("unchecked")
+    public FsmEngine.Trigger<E, T> defineTrigger(T onTrigger, E fromState, TriggerGuard<?> guard)
+    {
+        checkNotFrozen();
+
+        Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = triggersFor(onTrigger);
+        FsmEngine.Trigger<E, T> newTrigger = new FsmEngine.Trigger<>(this, onTrigger, fromState);
+        newTrigger.guard = (TriggerGuard<Object>) guard;
+
+        FsmEngine.Trigger<E, T> existing = triggersForEvent.get(fromState);
+        if(existing == null)
+        {
+            triggersForEvent.put(fromState, newTrigger);
+            return newTrigger;
+        }
+
+        //check an unguarded trigger for this from-state does not already exist
+        if(guard == null && findFallback(existing) != null)
+            throw new IllegalStateException("You have already defined a Trigger from this event/fromState combo");
+        if(existing.alternatives == null)
+            existing.alternatives = new ArrayList<>();
+        existing.alternatives.add(newTrigger);
+        return newTrigger;
+    }
+
+    /**
+     * Define a new Trigger handling the passed event from every state, e.g. a global DISCONNECT or RESET. Any Trigger
+     * defined (or inherited) for a specific state via {@link #defineTrigger(Object, Object)} or listed via
+     * {@link #defineTriggerFromStates(Object, Object[])} takes precedence over this one.
+     *
+     * Expanded into the per-state lookup at {@link #freeze()}, so dispatch is still a single lookup.
+     *
+     * @param onTrigger
+     */
+    public FsmEngine.Trigger<E, T> defineTriggerFromAny(T onTrigger)
+    {
+        checkNotFrozen();
+
+        if(mAnyStateTriggerMap.containsKey(onTrigger))
+            throw new IllegalStateException("You have already defined an any-state Trigger for event "+onTrigger);
+
+        triggersFor(onTrigger);
+        FsmEngine.Trigger<E, T> newTrigger = new FsmEngine.Trigger<>(this, onTrigger, null);
+        mAnyStateTriggerMap.put(onTrigger, newTrigger);
+        return newTrigger;
+    }
+
+    /**
+     * Define a single Trigger handling the passed event from each of the passed states (and their substates). Any
+     * Trigger defined (or inherited) for a specific state via {@link #defineTrigger(Object, Object)} takes precedence
+     * over this one, which in turn takes precedence over {@link #defineTriggerFromAny(Object)}.
+     *
+     * Expanded into the per-state lookup at {@link #freeze()}, so dispatch is still a single lookup.
+     *
+     * @param onTrigger
+     * @param fromStates at least one
+     */
+    @SafeVarargs
+    public final FsmEngine.Trigger<E, T> defineTriggerFromStates(T onTrigger, E... fromStates)
+    {
+        //copied element wise as the varargs array must not escape
+        List<E> states = new ArrayList<>();
+        if(fromStates != null)
+            for(E fromState : fromStates)
+                states.add(fromState);
+        return defineTriggerFromStates(onTrigger, states);
+    }
+
+    /**
+     * See {@link #defineTriggerFromStates(Object, Object[])}
+     *
+     * @param onTrigger
+     * @param fromStates at least one
+     */
+    public FsmEngine.Trigger<E, T> defineTriggerFromStates(T onTrigger, Collection<? extends E> fromStates)
+    {
+        checkNotFrozen();
+
+        if(fromStates == null || fromStates.isEmpty())
+            throw new IllegalArgumentException("At least one fromState is required");
+
+        Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = mFromStatesTriggerMap.get(onTrigger);
+        if(triggersForEvent == null)
+        {
+            triggersForEvent = new HashMap<>();
+            mFromStatesTriggerMap.put(onTrigger, triggersForEvent);
+        }
+        for(E fromState : fromStates)
+            if(triggersForEvent.containsKey(fromState))
+                throw new IllegalStateException("You have already listed state "+fromState+" for event "+onTrigger);
+
+        triggersFor(onTrigger);
+        FsmEngine.Trigger<E, T> newTrigger = new FsmEngine.Trigger<>(this, onTrigger, null);
+        for(E fromState : fromStates)
+            triggersForEvent.put(fromState, newTrigger);
+        return newTrigger;
+    }
+
+    /**
+     * Lock this definition. Flattens any state hierarchy (see {@link FsmEngine.Cylinder#setParent(Object)}) so each
+     * state holds its inherited Triggers directly, expands wildcard Triggers into every state they apply to, resolves
+     * each Triggers to-state Cylinder and, where the state / trigger types are enums, builds the dense ordinal indexed
+     * tables so dispatch does not need to hash. No further definition is allowed after this point. Calling more than
+     * once has no effect.
+     *
+     * @return this definition
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized FsmDefinition<E, T> freeze()
+    {
+        if(mFrozen)
+            return this;
+
+        compileGuards();
+        flattenHierarchy();
+        expandWildcards();
+
+        for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+        {
+            if(cylinder.timeoutTrigger == null)
+                continue;
+            Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = mTriggerMap.get(cylinder.timeoutTrigger);
+            if(triggersForEvent == null || triggersForEvent.get(cylinder.stateEnum) == null)
+                throw new IllegalStateException("Timeout trigger "+cylinder.timeoutTrigger+" not defined for state :"+cylinder.stateEnum);
+        }
+
+        for(Map<E, FsmEngine.Trigger<E, T>> triggersForEvent : mTriggerMap.values())
+            for(FsmEngine.Trigger<E, T> trigger : new HashSet<>(triggersForEvent.values()))
+            {
+                if(trigger.guardChain != null)
+                    for(FsmEngine.Trigger<E, T> candidate : trigger.guardChain)
+                        resolve(candidate);
+                resolve(trigger);
+            }
+
+        int stateCount = enumConstantCount(mCylinderMap.keySet());
+        if(stateCount >= 0)
+        {
+            //enum states, index by ordinal
+            mCylinderTable = newCylinderArray(stateCount);
+            for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+            {
+                cylinder.index = ((Enum<?>) cylinder.stateEnum).ordinal();
+                mCylinderTable[cylinder.index] = cylinder;
+            }
+            mCylinders = mCylinderTable;
+        }
+        else
+        {
+            //arbitrary states, index by definition order
+            mCylinders = newCylinderArray(mCylinderMap.size());
+            int index = 0;
+            for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+            {
+                cylinder.index = index;
+                mCylinders[index++] = cylinder;
+            }
+        }
+
+        int triggerCount = enumConstantCount(mTriggerMap.keySet());
+        if(triggerCount >= 0)
+        {
+            mTriggerEvents = (T[]) ((Enum<?>) mTriggerMap.keySet().iterator().next()).getDeclaringClass().getEnumConstants();
+        }
+        else
+        {
+            mTriggerEvents = (T[]) mTriggerMap.keySet().toArray();
+            mTriggerIndexMap = new HashMap<>();
+            for(int i = 0; i < mTriggerEvents.length; i++)
+                mTriggerIndexMap.put(mTriggerEvents[i], i);
+        }
+
+        if(stateCount >= 0 && triggerCount >= 0 && enumConstantCount(allStates()) == stateCount)
+        {
+            mTriggerTable = newTriggerTable(stateCount, triggerCount);
+            //keyed by from-state rather than Trigger.fromState as inherited Triggers are held under each substate
+            for(Map<E, FsmEngine.Trigger<E, T>> triggersForEvent : mTriggerMap.values())
+                for(Map.Entry<E, FsmEngine.Trigger<E, T>> trigger : triggersForEvent.entrySet())
+                    mTriggerTable[((Enum<?>) trigger.getKey()).ordinal()][((Enum<?>) trigger.getValue().onTrigger).ordinal()] = trigger.getValue();
+        }
+
+        mFrozen = true;
+        return this;
+    }
+
+    /**
+     * @return true if {@link #freeze()} has been called
+     */
+    public boolean isFrozen()
+    {
+        return mFrozen;
+    }
+
+    //=====================================================//
+    // Lookup (frozen only)
+    //=====================================================//
+
+    /**
+     * @param state
+     * @return Cylinder defined for the passed state, or null if none
+     */
+    FsmEngine.Cylinder<E, T> cylinderFor(E state)
+    {
+        return mCylinderTable != null
+                ? mCylinderTable[((Enum<?>) state).ordinal()]
+                : mCylinderMap.get(state);
+    }
+
+    /**
+     * @param index a {@link FsmEngine.Cylinder#index}
+     * @return Cylinder for the passed index, or null if there is no state defined for that index
+     */
+    FsmEngine.Cylinder<E, T> cylinderAt(int index)
+    {
+        return mCylinders[index];
+    }
+
+    /**
+     * @return upper bound (exclusive) of all {@link FsmEngine.Cylinder#index} values
+     */
+    int getCylinderIndexCount()
+    {
+        return mCylinders.length;
+    }
+
+    /**
+     * @param triggerEnum
+     * @return index of the passed trigger event, or -1 if no Triggers have been defined for it
+     */
+    int triggerIndexFor(T triggerEnum)
+    {
+        if(mTriggerIndexMap == null)
+            return ((Enum<?>) triggerEnum).ordinal();
+        Integer index = mTriggerIndexMap.get(triggerEnum);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param index a trigger index as returned from {@link #triggerIndexFor(Object)}
+     * @return trigger event for the passed index
+     */
+    T triggerAt(int index)
+    {
+        return mTriggerEvents[index];
+    }
+
+    /**
+     * @return upper bound (exclusive) of all trigger indexes
+     */
+    int getTriggerIndexCount()
+    {
+        return mTriggerEvents.length;
+    }
+
+    /**
+     * Fast path Trigger lookup.
+     *
+     * @param fromCylinder current state
+     * @param triggerEnum
+     * @return Trigger defined for the passed state, or null if none
+     */
+    FsmEngine.Trigger<E, T> triggerFor(FsmEngine.Cylinder<E, T> fromCylinder, T triggerEnum)
+    {
+        if(mTriggerTable != null)
+            return mTriggerTable[fromCylinder.index][((Enum<?>) triggerEnum).ordinal()];
+
+        Map<E, FsmEngine.Trigger<E, T>> triggersByEvent = mTriggerMap.get(triggerEnum);
+        return triggersByEvent == null ? null : triggersByEvent.get(fromCylinder.stateEnum);
+    }
+
+    /**
+     * @param triggerEnum
+     * @return true if any Trigger has been defined for the passed event
+     */
+    boolean hasTrigger(T triggerEnum)
+    {
+        return mTriggerMap.containsKey(triggerEnum);
+    }
+
+    /**
+     * Slow path Trigger lookup via {@link #mTriggerMap}, throwing with a descriptive message if no Trigger exists.
+     *
+     * @param fromCylinder current state
+     * @param triggerEnum
+     * @return Trigger defined for the passed state, never null
+     */
+    FsmEngine.Trigger<E, T> requireTrigger(FsmEngine.Cylinder<E, T> fromCylinder, T triggerEnum)
+    {
+        //get all matching triggers for Trigger enum
+        Map<E, FsmEngine.Trigger<E, T>> triggersByEvent = mTriggerMap.get(triggerEnum);
+
+        if(triggersByEvent == null)
+            throw new NullPointerException("No Triggers exist for "+triggerEnum.toString());
+
+        //get trigger that matches current state from subset
+        FsmEngine.Trigger<E, T> trigger = triggersByEvent.get(fromCylinder.stateEnum);
+
+        if(trigger == null)
+            throw new IllegalStateException("Trigger "+triggerEnum+" received but trigger not defined for current state :"+fromCylinder.stateEnum);
+
+        return trigger;
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    void checkNotFrozen()
+    {
+        if(mFrozen)
+            throw new IllegalStateException("Cant configure after already started!");
+    }
+
+    /**
+     * Replace each event/fromState combo with guarded or multiple Triggers by a routing Trigger holding them all in
+     * evaluation order: guarded Triggers in definition order, then the fallback
+     */
+    private void compileGuards()
+    {
+        for(Map<E, FsmEngine.Trigger<E, T>> triggersForEvent : mTriggerMap.values())
+        {
+            for(Map.Entry<E, FsmEngine.Trigger<E, T>> entry : triggersForEvent.entrySet())
+            {
+                FsmEngine.Trigger<E, T> first = entry.getValue();
+                if(first.guard == null && first.alternatives == null)
+                    continue;
+
+                List<FsmEngine.Trigger<E, T>> chain = new ArrayList<>();
+                chain.add(first);
+                if(first.alternatives != null)
+                    chain.addAll(first.alternatives);
+                FsmEngine.Trigger<E, T> fallback = findFallback(first);
+                if(fallback != null)
+                {
+                    chain.remove(fallback);
+                    chain.add(fallback);
+                }
+
+                FsmEngine.Trigger<E, T> router = new FsmEngine.Trigger<>(this, first.onTrigger, first.fromState);
+                router.guardChain = chain.toArray(FsmDefinition.<E, T>newTriggerArray(chain.size()));
+                entry.setValue(router);
+            }
+        }
+    }
+
+    /**
+     * @return the unguarded Trigger among the passed first defined Trigger and its alternatives, or null if none
+     */
+    private static <E, T> FsmEngine.Trigger<E, T> findFallback(FsmEngine.Trigger<E, T> first)
+    {
+        if(first.guard == null)
+            return first;
+        if(first.alternatives != null)
+            for(FsmEngine.Trigger<E, T> alternative : first.alternatives)
+                if(alternative.guard == null)
+                    return alternative;
+        return null;
+    }
+
+    /**
+     * Resolve the to-state Cylinder of the passed Trigger
+     */
+    private void resolve(FsmEngine.Trigger<E, T> trigger)
+    {
+        if(trigger.toState != null)
+            trigger.toCylinder = mCylinderMap.get(trigger.toState);
+    }
+
+    /**
+     * Resolve each substates ancestry into {@link FsmEngine.Cylinder#path} and copy the nearest ancestors Trigger for
+     * each event into every substate that does not define its own, so dispatch never walks the parent chain.
+     */
+    private void flattenHierarchy()
+    {
+        for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+        {
+            if(cylinder.parentState == null)
+                continue;
+
+            List<FsmEngine.Cylinder<E, T>> ancestry = new ArrayList<>();
+            for(FsmEngine.Cylinder<E, T> ancestor = cylinder; ancestor != null; )
+            {
+                if(ancestry.size() > mCylinderMap.size())
+                    throw new IllegalStateException("Cyclic parent states for "+cylinder.stateEnum);
+                ancestry.add(0, ancestor);
+                if(ancestor.parentState == null)
+                    break;
+                FsmEngine.Cylinder<E, T> parent = mCylinderMap.get(ancestor.parentState);
+                if(parent == null)
+                    throw new NullPointerException(ancestor.parentState.getClass().getName()+"."+ancestor.parentState.toString()+" does not exist in map!");
+                ancestor = parent;
+            }
+            cylinder.path = ancestry.toArray(FsmDefinition.<E, T>newCylinderArray(ancestry.size()));
+        }
+
+        for(Map<E, FsmEngine.Trigger<E, T>> triggersForEvent : mTriggerMap.values())
+        {
+            //inherit from declared Triggers only, so nearest ancestor wins regardless of iteration order
+            Map<E, FsmEngine.Trigger<E, T>> declared = new HashMap<>(triggersForEvent);
+            for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+            {
+                if(cylinder.path == null || declared.containsKey(cylinder.stateEnum))
+                    continue;
+                for(int depth = cylinder.path.length - 2; depth >= 0; depth--)
+                {
+                    FsmEngine.Trigger<E, T> inherited = declared.get(cylinder.path[depth].stateEnum);
+                    if(inherited != null)
+                    {
+                        triggersForEvent.put(cylinder.stateEnum, inherited);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill each state without a Trigger (declared or inherited) for an event with its wildcard Trigger if any: first
+     * a {@link #defineTriggerFromStates(Object, Object[])} Trigger listing the state or its nearest listed ancestor,
+     * then the {@link #defineTriggerFromAny(Object)} Trigger. Must run after {@link #flattenHierarchy()} so state
+     * specific Triggers take precedence.
+     */
+    private void expandWildcards()
+    {
+        for(Map.Entry<T, Map<E, FsmEngine.Trigger<E, T>>> entry : mFromStatesTriggerMap.entrySet())
+        {
+            Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = mTriggerMap.get(entry.getKey());
+            Map<E, FsmEngine.Trigger<E, T>> listed = entry.getValue();
+            for(Map.Entry<E, FsmEngine.Trigger<E, T>> trigger : listed.entrySet())
+                if(!triggersForEvent.containsKey(trigger.getKey()))
+                    triggersForEvent.put(trigger.getKey(), trigger.getValue());
+            for(FsmEngine.Cylinder<E, T> cylinder : mCylinderMap.values())
+            {
+                if(cylinder.path == null || triggersForEvent.containsKey(cylinder.stateEnum))
+                    continue;
+                for(int depth = cylinder.path.length - 2; depth >= 0; depth--)
+                {
+                    FsmEngine.Trigger<E, T> inherited = listed.get(cylinder.path[depth].stateEnum);
+                    if(inherited != null)
+                    {
+                        triggersForEvent.put(cylinder.stateEnum, inherited);
+                        break;
+                    }
+                }
+            }
+        }
+
+        for(Map.Entry<T, FsmEngine.Trigger<E, T>> entry : mAnyStateTriggerMap.entrySet())
+        {
+            Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = mTriggerMap.get(entry.getKey());
+            for(E state : mCylinderMap.keySet())
+                if(!triggersForEvent.containsKey(state))
+                    triggersForEvent.put(state, entry.getValue());
+        }
+    }
+
+    /**
+     * @return from-state -> Trigger map for the passed event, created if needed
+     */
+    private Map<E, FsmEngine.Trigger<E, T>> triggersFor(T onTrigger)
+    {
+        Map<E, FsmEngine.Trigger<E, T>> triggersForEvent = mTriggerMap.get(onTrigger);
+        if(triggersForEvent == null)
+        {
+            triggersForEvent = new HashMap<>();
+            mTriggerMap.put(onTrigger, triggersForEvent);
+        }
+        return triggersForEvent;
+    }
+
+    /**
+     * @return all defined states plus all from-states referenced by defined Triggers
+     */
+    private Collection<E> allStates()
+    {
+        Collection<E> states = new ArrayList<>(mCylinderMap.keySet());
+        for(Map<E, FsmEngine.Trigger<E, T>> triggersForEvent : mTriggerMap.values())
+            states.addAll(triggersForEvent.keySet());
+        return states;
+    }
+
+    /**
+     * @param keys
+     * @return number of constants of the enum all keys belong to, or -1 if the keys are empty, not enums or not all of
+     * the same enum type.
+     */
+    private static int enumConstantCount(Collection<?> keys)
+    {
+        Class<?> enumClass = null;
+        for(Object key : keys)
+        {
+            if(!(key instanceof Enum))
+                return -1;
+            Class<?> keyClass = ((Enum<?>) key).getDeclaringClass();
+            if(enumClass == null)
+                enumClass = keyClass;
+            else if(enumClass != keyClass)
+                return -1;
+        }
+        return enumClass == null ? -1 : enumClass.getEnumConstants().length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, T> FsmEngine.Cylinder<E, T>[] newCylinderArray(int length)
+    {
+        return (FsmEngine.Cylinder<E, T>[]) new FsmEngine.Cylinder<?, ?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, T> FsmEngine.Trigger<E, T>[] newTriggerArray(int length)
+    {
+        return (FsmEngine.Trigger<E, T>[]) new FsmEngine.Trigger<?, ?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, T> FsmEngine.Trigger<E, T>[][] newTriggerTable(int stateCount, int triggerCount)
+    {
+        return (FsmEngine.Trigger<E, T>[][]) new FsmEngine.Trigger<?, ?>[stateCount][triggerCount];
+    }
+}
@@ -1,7 +1,9 @@
 package com.kodroid.engine;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Finite State Machine.
@@ -15,23 +17,23 @@ import java.util.Map;
  * Very similar to other Java FSMs apart from you can pass an arbitrary data object around when firing triggers or when
  * triggering state transitions from inside state-based actions.
  *
+ * The states and triggers live in a {@link FsmDefinition}. An engine either defines its own (via
+ * {@link #defineCylinder(Object)} / {@link #defineTrigger(Object, Object)}) or shares a frozen one passed to
+ * {@link #FsmEngine(FsmDefinition)}, in which case the engine itself only holds its current state, data and observers.
+ *
  * @param <E> State enum type
  * @param <T> Trigger events. Use {@link FsmEngine.NoTriggers} if there are no external triggers.
  */
-public class FsmEngine<E, T>
+public class FsmEngine<E, T> implements TransitionContext<E, T>
 {
     //=====================================================//
     // Definition Fields
     //=====================================================//
 
     /**
-     * The states of this fsm
-     */
-    private Map<E, Cylinder<E, T>> mCylinderMap = new HashMap<>();
-    /**
-     * Map of Trigger-events -> Map of fromStates -> Triggers
+     * The states and triggers of this fsm. May be shared with other engines once frozen.
      */
-    private Map<T, Map<E, Trigger<E, T>>> mTriggerMap = new HashMap<>();
+    private final FsmDefinition<E, T> mDefinition;
 
     //=====================================================//
     // Operating Fields
@@ -49,16 +51,56 @@ public class FsmEngine<E, T>
      */
     private Object mCurrentCylindersData;
 
-    private Observer<E> mObserver;
+    /**
+     * Copy on write, replaced on add / remove so notifying never allocates or sees a concurrent modification
+     */
+    private Observer<E>[] mObservers = noObservers();
 
-    //=====================================================//
-    // Builder
-    //=====================================================//
+    /**
+     * Initial capacity of the run to completion queue, grows if exceeded
+     */
+    private static final int EVENT_QUEUE_CAPACITY = 16;
+    /**
+     * Null until an optional feature is first enabled, so a plain engine only holds its state, data and observers
+     */
+    private Extensions<E, T> mExtensions;
 
     /**
      * Keeps track of when started so FSM cannot be configured after this point.
      */
     private boolean mStarted;
+    /**
+     * Depth of triggers / state changes being applied, so {@link #reset()} can refuse to run from inside an action
+     */
+    private int mApplyDepth;
+
+    //=====================================================//
+    // Constructors
+    //=====================================================//
+
+    /**
+     * Create an engine with its own definition, to be configured via {@link #defineCylinder(Object)} and
+     * {@link #defineTrigger(Object, Object)} before {@link #start(Object, Object)} is called.
+     */
+    public FsmEngine()
+    {
+        mDefinition = new FsmDefinition<>();
+    }
+
+    /**
+     * Create an engine backed by a shared definition. The definition is frozen if it has not been already so
+     * {@link #defineCylinder(Object)} and {@link #defineTrigger(Object, Object)} cannot be called on this engine.
+     *
+     * @param definition
+     */
+    public FsmEngine(FsmDefinition<E, T> definition)
+    {
+        mDefinition = definition.freeze();
+    }
+
+    //=====================================================//
+    // Builder
+    //=====================================================//
 
     /**
      * Define a new Cylinder representing a state of this FSM
@@ -66,9 +108,7 @@ public class FsmEngine<E, T>
      */
     public Cylinder<E, T> defineCylinder(E stateEnum)
     {
-        Cylinder<E, T> newCylinder = new Cylinder<>(stateEnum);
-        addCylinder(newCylinder);
-        return newCylinder;
+        return mDefinition.defineCylinder(stateEnum);
     }
 
     /**
@@ -79,9 +119,47 @@ public class FsmEngine<E, T>
      */
     public Trigger<E, T> defineTrigger(T onTrigger, E fromState)
     {
-        Trigger<E, T> newTrigger = new Trigger<>(onTrigger, fromState);
-        addTrigger(newTrigger);
-        return newTrigger;
+        return mDefinition.defineTrigger(onTrigger, fromState);
+    }
+
+    /**
+     * Define a new guarded Trigger. See {@link FsmDefinition#defineTrigger(Object, Object, TriggerGuard)}.
+     *
+     * @param onTrigger
+     * @param fromState
+     * @param guard
+     */
+    public Trigger<E, T> defineTrigger(T onTrigger, E fromState, TriggerGuard<?> guard)
+    {
+        return mDefinition.defineTrigger(onTrigger, fromState, guard);
+    }
+
+    /**
+     * Define a new Trigger from every state. See {@link FsmDefinition#defineTriggerFromAny(Object)}.
+     *
+     * @param onTrigger
+     */
+    public Trigger<E, T> defineTriggerFromAny(T onTrigger)
+    {
+        return mDefinition.defineTriggerFromAny(onTrigger);
+    }
+
+    /**
+     * Define a new Trigger from each of the passed states. See
+     * {@link FsmDefinition#defineTriggerFromStates(Object, Object[])}.
+     *
+     * @param onTrigger
+     * @param fromStates
+     */
+    @SafeVarargs
+    public final Trigger<E, T> defineTriggerFromStates(T onTrigger, E... fromStates)
+    {
+        //copied element wise as the varargs array must not escape
+        List<E> states = new ArrayList<>();
+        if(fromStates != null)
+            for(E fromState : fromStates)
+                states.add(fromState);
+        return mDefinition.defineTriggerFromStates(onTrigger, states);
     }
 
     /**
@@ -96,7 +174,7 @@ public class FsmEngine<E, T>
     }
 
     /**
-     * Start this FSM at the passed in state. Can only be called once. {@link #defineCylinder(Object)} and {@link #defineTrigger(Object, Object)} cannot be called after this point.
+     * Start this FSM at the passed in state. Can only be called once, unless {@link #reset()}. {@link #defineCylinder(Object)} and {@link #defineTrigger(Object, Object)} cannot be called after this point.
      *
      * @param startingState
      * @param optionalInputData
@@ -104,6 +182,7 @@ public class FsmEngine<E, T>
      */
     public FsmEngine<E, T> start(E startingState, Object optionalInputData)
     {
+        mDefinition.freeze();
         mStarted = true;
         nextState(startingState, optionalInputData);
         return this;
@@ -131,27 +210,72 @@ public class FsmEngine<E, T>
      */
     public final void nextState(E state, Object optionalInputData)
     {
-        if(!mStarted)
-            throw new IllegalStateException("Not started!");
+        try
+        {
+            if(eventQueue() != null)
+                dispatchToCompletion(EventQueue.NEXT_STATE, state, optionalInputData);
+            else if(applyNextState(state, optionalInputData) != DispatchResult.ACCEPTED)
+                throwNextStateRejection(state, optionalInputData);
+        }
+        catch(RuntimeException e)
+        {
+            FsmHistory<E, T> history = getHistory();
+            if(history != null)
+                history.attachTo(e);
+            throw e;
+        }
+    }
 
-        if(mCurrentCylinder != null && mCurrentCylinder.exitAction != null)
-            doAction(mCurrentCylinder.exitAction, mCurrentCylindersData);
+    /**
+     * Non-throwing variant of {@link #nextState(Object, Object)}. Does not allocate if the state change is rejected.
+     *
+     * @param state state to move to
+     * @param optionalInputData can be null. Will be passed to next states {@link Action} classes.
+     * @return {@link DispatchResult#ACCEPTED} if the state change took place, otherwise why it was rejected, in which
+     * case no actions have been run. {@link DispatchResult#QUEUED} if called from inside an action in run to completion
+     * mode.
+     */
+    public final DispatchResult tryNextState(E state, Object optionalInputData)
+    {
+        return eventQueue() != null
+                ? dispatchToCompletion(EventQueue.TRY_NEXT_STATE, state, optionalInputData)
+                : applyNextState(state, optionalInputData);
+    }
 
-        if(!mCylinderMap.containsKey(state))
-            throw new NullPointerException(state.getClass().getName()+"."+state.toString()+" does not exist in map!");
-        mCurrentCylinder = mCylinderMap.get(state);
+    /**
+     * {@link #nextState(Object, Object)} with input data that is only built if read. See
+     * {@link #triggerLazy(Object, Class, DataSupplier)}.
+     *
+     * @param state state to move to
+     * @param dataType type of the supplied data, checked against the states required data type
+     * @param dataSupplier must return an instance of dataType
+     */
+    public final <D> void nextStateLazy(E state, Class<D> dataType, DataSupplier<? extends D> dataSupplier)
+    {
+        nextState(state, new LazyData(dataType, dataSupplier));
+    }
 
-        //data checking
-        if(mCurrentCylinder.requiredDataType == null && optionalInputData != null)
-            throw new IllegalStateException("Current state does not require any data whereas some has been passed: "+mCurrentCylinder.stateEnum+" | "+optionalInputData.getClass().getName());
-        if(mCurrentCylinder.requiredDataType != null && optionalInputData == null)
-                throw new IllegalStateException("Current state requires input data whereas none has been passed: "+mCurrentCylinder.stateEnum+" | "+mCurrentCylinder.requiredDataType.getName());
+    private DispatchResult applyNextState(E state, Object optionalInputData)
+    {
+        if(!mStarted)
+            throw new IllegalStateException("Not started!");
 
-        mCurrentCylindersData = optionalInputData;
-        if(mCurrentCylinder.enterAction != null)
-            doAction(mCurrentCylinder.enterAction, mCurrentCylindersData);
+        Cylinder<E, T> nextCylinder = mDefinition.cylinderFor(state);
+        if(nextCylinder == null)
+            return DispatchResult.UNKNOWN_STATE;
+        if(!nextCylinder.acceptsInputData(optionalInputData))
+            return DispatchResult.DATA_TYPE_MISMATCH;
 
-        notifyObserver();
+        mApplyDepth++;
+        try
+        {
+            transitionTo(nextCylinder, optionalInputData, null);
+        }
+        finally
+        {
+            mApplyDepth--;
+        }
+        return DispatchResult.ACCEPTED;
     }
 
     /**
@@ -166,41 +290,317 @@ public class FsmEngine<E, T>
      */
     public void trigger(T triggerEnum, Object optionalInputData)
     {
-        if(!mStarted)
-            throw new IllegalStateException("Not started! start(...) needs to be called before any trigger events.");
+        try
+        {
+            if(eventQueue() != null)
+                dispatchToCompletion(EventQueue.TRIGGER, triggerEnum, optionalInputData);
+            else if(applyTrigger(triggerEnum, optionalInputData) != DispatchResult.ACCEPTED)
+                throwTriggerRejection(triggerEnum, optionalInputData);
+        }
+        catch(RuntimeException e)
+        {
+            FsmHistory<E, T> history = getHistory();
+            if(history != null)
+                history.attachTo(e);
+            throw e;
+        }
+    }
 
-        //get all matching triggers for Trigger enum
-        Map<E, Trigger<E, T>> triggersByEvent = mTriggerMap.get(triggerEnum);
+    /**
+     * Non-throwing variant of {@link #trigger(Object, Object)}, for when rejected triggers are expected (e.g. from
+     * misbehaving peers). Does not allocate if the trigger is rejected.
+     *
+     * @param triggerEnum
+     * @param optionalInputData can be null. See {@link #trigger(Object, Object)}.
+     * @return {@link DispatchResult#ACCEPTED} if the trigger was applied, otherwise why it was rejected, in which case
+     * no actions have been run. {@link DispatchResult#QUEUED} if called from inside an action in run to completion mode.
+     */
+    public DispatchResult tryTrigger(T triggerEnum, Object optionalInputData)
+    {
+        return eventQueue() != null
+                ? dispatchToCompletion(EventQueue.TRY_TRIGGER, triggerEnum, optionalInputData)
+                : applyTrigger(triggerEnum, optionalInputData);
+    }
 
-        if(triggersByEvent == null)
-            throw new NullPointerException("No Triggers exist for "+triggerEnum.toString());
+    /**
+     * {@link #trigger(Object, Object)} with input data that is only built if read. The supplier is called at most once,
+     * when an action, guard or observer reads the data (see {@link LazyData}), and not at all if nothing does. Data type
+     * checks use the passed type instead. Registered observers and {@link TransitionAction}s always read it, see
+     * {@link DataSupplier}.
+     *
+     * @param triggerEnum
+     * @param dataType type of the supplied data, checked against required data types
+     * @param dataSupplier must return an instance of dataType
+     */
+    public <D> void triggerLazy(T triggerEnum, Class<D> dataType, DataSupplier<? extends D> dataSupplier)
+    {
+        trigger(triggerEnum, new LazyData(dataType, dataSupplier));
+    }
 
-        //get trigger that matches current state from subset
-        Trigger<E, T> trigger = triggersByEvent.get(mCurrentCylinder.stateEnum);
+    /**
+     * Non-throwing variant of {@link #triggerLazy(Object, Class, DataSupplier)}
+     *
+     * @return see {@link #tryTrigger(Object, Object)}
+     */
+    public <D> DispatchResult tryTriggerLazy(T triggerEnum, Class<D> dataType, DataSupplier<? extends D> dataSupplier)
+    {
+        return tryTrigger(triggerEnum, new LazyData(dataType, dataSupplier));
+    }
+
+    private DispatchResult applyTrigger(T triggerEnum, Object optionalInputData)
+    {
+        DispatchResult result;
+        mApplyDepth++;
+        try
+        {
+            result = dispatchTrigger(triggerEnum, optionalInputData);
+        }
+        finally
+        {
+            mApplyDepth--;
+        }
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions != null)
+        {
+            if(extensions.metrics != null)
+                extensions.metrics.recordTrigger(triggerEnum, result == DispatchResult.ACCEPTED);
+            if(extensions.tracer != null && result != DispatchResult.ACCEPTED)
+                extensions.tracer.onTriggerRejected(mCurrentCylinder.stateEnum, triggerEnum, result);
+        }
+        return result;
+    }
+
+    private DispatchResult dispatchTrigger(T triggerEnum, Object optionalInputData)
+    {
+        if(!mStarted)
+            throw new IllegalStateException("Not started! start(...) needs to be called before any trigger events.");
 
+        Trigger<E, T> trigger = mDefinition.triggerFor(mCurrentCylinder, triggerEnum);
         if(trigger == null)
-            throw new IllegalStateException("Trigger "+triggerEnum+" received but trigger not defined for current state :"+mCurrentCylinder.getStateEnum());
+            return mDefinition.hasTrigger(triggerEnum)
+                    ? DispatchResult.NO_TRANSITION_FOR_STATE
+                    : DispatchResult.UNKNOWN_TRIGGER;
+
+        if(trigger.guardChain != null)
+        {
+            //picks the first candidate whose guard accepts
+            trigger = trigger.match(optionalInputData);
+            if(trigger == null)
+                return DispatchResult.NO_GUARD_MATCHED;
+        }
 
         //passed data type checking
-        if(trigger.requiredDataType != null)
+        if(!trigger.acceptsInputData(optionalInputData))
+            return DispatchResult.DATA_TYPE_MISMATCH;
+        if(trigger.toState != null)
         {
-            if(optionalInputData == null)
-                throw new NullPointerException(triggerEnum+" requires "+trigger.requiredDataType.getName());
-            if(!optionalInputData.getClass().equals(trigger.requiredDataType))
-                throw new IllegalArgumentException(triggerEnum+" requires "+trigger.requiredDataType.getName());
+            if(trigger.toCylinder == null)
+                return DispatchResult.UNKNOWN_STATE;
+            if(!trigger.toCylinder.acceptsInputData(optionalInputData))
+                return DispatchResult.DATA_TYPE_MISMATCH;
         }
 
-        //any transition actions
         if(trigger.transitionAction != null)
+            runTransitionAction(trigger, optionalInputData);
+        if(trigger.toState != null)
+            transitionTo(trigger.toCylinder, optionalInputData, triggerEnum);
+        return DispatchResult.ACCEPTED;
+    }
+
+    /**
+     * Enable (or with null, disable) state timeouts for this engine, see
+     * {@link Cylinder#setTimeout(long, TimeUnit, Object)}. The same wheel can be shared by any number of engines driven
+     * from the same thread. If started the timeout of the current state is armed from now.
+     *
+     * @param timingWheel
+     */
+    public void setTimingWheel(TimingWheel timingWheel)
+    {
+        Extensions<E, T> extensions = extensions();
+        if(extensions.timingWheel != null)
+            extensions.timingWheel.cancel(extensions.timer);
+        extensions.timingWheel = timingWheel;
+        extensions.timer = timingWheel == null ? null : new TimingWheel.Timer(this);
+        if(timingWheel != null && mCurrentCylinder != null)
+            armTimeout(mCurrentCylinder);
+    }
+
+    /**
+     * Enable (or disable) run to completion mode. By default a trigger / state change requested from inside an action
+     * is applied immediately, recursing into the engine before the requesting action has returned. In run to completion
+     * mode it is instead queued and applied once the current transition (and all its actions) has completed, so long
+     * chains of automatic transitions use constant stack depth and observers are notified in transition order.
+     *
+     * When queued, {@link #tryTrigger(Object, Object)} / {@link #tryNextState(Object, Object)} return
+     * {@link DispatchResult#QUEUED} and {@link #trigger(Object, Object)} / {@link #nextState(Object, Object)} return
+     * straight away. A queued event that is later rejected is dropped if it was queued via a try method, otherwise it
+     * throws out of the outermost call, discarding any events still queued.
+     *
+     * Cannot be changed from inside an action.
+     *
+     * @param enabled
+     */
+    public void setRunToCompletion(boolean enabled)
+    {
+        Extensions<E, T> extensions = extensions();
+        if(extensions.dispatching)
+            throw new IllegalStateException("Cannot change run to completion mode from inside an action");
+        extensions.eventQueue = enabled ? new EventQueue(EVENT_QUEUE_CAPACITY) : null;
+    }
+
+    /**
+     * @return current state, or null if not started
+     */
+    public E getCurrentState()
+    {
+        return mCurrentCylinder == null ? null : mCurrentCylinder.stateEnum;
+    }
+
+    /**
+     * Enable (or with null, disable) metrics recording for this engine. The same metrics instance can be shared by all
+     * engines using the same definition.
+     *
+     * @param metrics must have been created for this engines definition
+     */
+    public void setMetrics(FsmMetrics<E, T> metrics)
+    {
+        if(metrics != null && metrics.getDefinition() != mDefinition)
+            throw new IllegalArgumentException("Metrics were created for a different definition");
+        Extensions<E, T> extensions = extensions();
+        extensions.metrics = metrics;
+        extensions.enteredAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Enable (or with null, disable) event tracing for this engine. See {@link FsmTracer}.
+     *
+     * @param tracer can be shared between engines
+     */
+    public void setTracer(FsmTracer<E, T> tracer)
+    {
+        Extensions<E, T> extensions = extensions();
+        extensions.tracer = tracer;
+        extensions.enteredAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Enable (or with null, disable) recording of this engines most recent transitions. See {@link FsmHistory}.
+     *
+     * @param history must have been created for this engines definition, and not be used by any other engine
+     */
+    public void setHistory(FsmHistory<E, T> history)
+    {
+        if(history != null && history.getDefinition() != mDefinition)
+            throw new IllegalArgumentException("History was created for a different definition");
+        extensions().history = history;
+    }
+
+    /**
+     * @return history set via {@link #setHistory(FsmHistory)}, or null
+     */
+    public FsmHistory<E, T> getHistory()
+    {
+        return mExtensions == null ? null : mExtensions.history;
+    }
+
+    /**
+     * Enable (or with null, disable) journaling of every state change this engine makes. See {@link FsmJournal}.
+     *
+     * @param journal can be shared between engines using the same definition
+     * @param machineId identifies this engine within the journal
+     */
+    public void setJournal(FsmJournal journal, long machineId)
+    {
+        Extensions<E, T> extensions = extensions();
+        extensions.journal = journal;
+        extensions.journalMachineId = machineId;
+    }
+
+    /**
+     * Put this engine straight into the passed state, as recovered from a {@link FsmJournal} or {@link FsmSnapshot}. Unlike
+     * {@link #start(Object, Object)} no actions are run, no observer is notified and nothing is journaled.
+     *
+     * @param state state to restore
+     * @param optionalStateData can be null, must match the states {@link Cylinder#setRequiredDataType(Class)}
+     * @return
+     */
+    public FsmEngine<E, T> restore(E state, Object optionalStateData)
+    {
+        mDefinition.freeze();
+        Cylinder<E, T> cylinder = mDefinition.cylinderFor(state);
+        if(cylinder == null)
+            throw new NullPointerException(state.getClass().getName()+"."+state.toString()+" does not exist in map!");
+        cylinder.checkInputData(optionalStateData);
+
+        mStarted = true;
+        mCurrentCylinder = cylinder;
+        mCurrentCylindersData = optionalStateData;
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions != null)
         {
-            trigger.transitionAction.setInputData(optionalInputData);
-            trigger.transitionAction.run();
+            extensions.enteredAtNanos = System.nanoTime();
+            if(extensions.timingWheel != null)
+                armTimeout(cylinder);
         }
+        return this;
+    }
 
-        if(trigger.toState == null)
-            return; //no state transition should take place
-        else
-            nextState(trigger.toState, optionalInputData);
+    /**
+     * Return this engine to its pre-start state so it can be started again with the same definition, e.g. when
+     * recycled via {@link FsmEnginePool}. No actions are run and nothing is journaled. Observers, any armed timeout and
+     * any queued run to completion events are removed, any history cleared and the journal unset, as its machine id
+     * belongs to the previous machine, so must be set again via {@link #setJournal(FsmJournal, long)}. Metrics,
+     * tracer, history, timing wheel and run to completion settings are kept.
+     *
+     * Cannot be called from inside an action.
+     *
+     * @return
+     */
+    public FsmEngine<E, T> reset()
+    {
+        if(mApplyDepth > 0)
+            throw new IllegalStateException("Cannot reset from inside an action");
+
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions != null)
+        {
+            if(extensions.timingWheel != null)
+                extensions.timingWheel.cancel(extensions.timer);
+            if(extensions.eventQueue != null)
+                extensions.eventQueue.clear();
+            if(extensions.history != null)
+                extensions.history.clear();
+            extensions.journal = null;
+        }
+        mObservers = noObservers();
+        mCurrentCylinder = null;
+        mCurrentCylindersData = null;
+        mStarted = false;
+        return this;
+    }
+
+    /**
+     * @return current Cylinder, or null if not started
+     */
+    Cylinder<E, T> getCurrentCylinder()
+    {
+        return mCurrentCylinder;
+    }
+
+    /**
+     * @return data of the current state, may be null
+     */
+    Object getCurrentCylindersData()
+    {
+        return mCurrentCylindersData = LazyData.resolve(mCurrentCylindersData);
+    }
+
+    /**
+     * @return the definition backing this engine
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
     }
 
     //=====================================================//
@@ -208,63 +608,355 @@ public class FsmEngine<E, T>
     //=====================================================//
 
     /**
-     * Execute (enter/exit) action
-     *
-     * @param action FsmEngine.Action to execute
-     * @param optionalInputData can be null
+     * Run to completion dispatch. Applies the passed event and then every event queued by actions while doing so, or
+     * queues the passed event if called from inside an action.
      */
-    private void doAction(Action action, Object optionalInputData)
+    private DispatchResult dispatchToCompletion(byte kind, Object event, Object optionalInputData)
     {
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions.dispatching)
+        {
+            extensions.eventQueue.add(kind, event, optionalInputData);
+            return DispatchResult.QUEUED;
+        }
+
+        extensions.dispatching = true;
         try
         {
-            action.setInputData(optionalInputData);
-            action.run();
+            DispatchResult result = applyEvent(kind, event, optionalInputData);
+            EventQueue queue = extensions.eventQueue;
+            while(!queue.isEmpty())
+            {
+                byte queuedKind = queue.peekKind();
+                Object queuedEvent = queue.peekEvent();
+                Object queuedData = queue.peekData();
+                queue.remove();
+                applyEvent(queuedKind, queuedEvent, queuedData);
+            }
+            return result;
         }
-        catch (Exception e)
+        finally
         {
-            throw new RuntimeException(e);
+            extensions.dispatching = false;
+            extensions.eventQueue.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private DispatchResult applyEvent(byte kind, Object event, Object optionalInputData)
+    {
+        DispatchResult result;
+        switch(kind)
+        {
+            case EventQueue.TRIGGER:
+                result = applyTrigger((T) event, optionalInputData);
+                if(result != DispatchResult.ACCEPTED)
+                    throwTriggerRejection((T) event, optionalInputData);
+                return result;
+            case EventQueue.TRY_TRIGGER:
+                return applyTrigger((T) event, optionalInputData);
+            case EventQueue.NEXT_STATE:
+                result = applyNextState((E) event, optionalInputData);
+                if(result != DispatchResult.ACCEPTED)
+                    throwNextStateRejection((E) event, optionalInputData);
+                return result;
+            default:
+                return applyNextState((E) event, optionalInputData);
         }
     }
 
     /**
-     * Add configuration time {@link FsmEngine.Cylinder} which represent FSM states. Cant call after {@link #start(Object, Object)} has been called.
+     * @return holder of this engines optional features, allocated on first use
+     */
+    private Extensions<E, T> extensions()
+    {
+        if(mExtensions == null)
+            mExtensions = new Extensions<>();
+        return mExtensions;
+    }
+
+    /**
+     * @return run to completion queue, null unless enabled
+     */
+    private EventQueue eventQueue()
+    {
+        return mExtensions == null ? null : mExtensions.eventQueue;
+    }
+
+    /**
+     * Run the passed Triggers transition action, recording its duration if metrics or tracing are enabled
      *
-     * @param cylinder
-     * @return
+     * @param trigger validated Trigger
+     * @param optionalInputData can be null, already validated against trigger
      */
-    private FsmEngine<E, T> addCylinder(Cylinder<E, T> cylinder)
+    private void runTransitionAction(Trigger<E, T> trigger, Object optionalInputData)
     {
-        if(mStarted)
-            throw new IllegalStateException("Cant configure after already started!");
-        mCylinderMap.put(cylinder.stateEnum, cylinder);
-        return this;
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions != null && (extensions.metrics != null || extensions.tracer != null))
+        {
+            E state = mCurrentCylinder.stateEnum;
+            long startNanos = System.nanoTime();
+            trigger.runTransitionAction(optionalInputData, this);
+            long durationNanos = System.nanoTime() - startNanos;
+            if(extensions.metrics != null)
+                extensions.metrics.recordTransitionAction(trigger.onTrigger, durationNanos);
+            if(extensions.tracer != null)
+                extensions.tracer.onActionRun(FsmTracer.ActionType.TRANSITION, state, trigger.onTrigger, durationNanos);
+        }
+        else
+        {
+            trigger.runTransitionAction(optionalInputData, this);
+        }
     }
 
     /**
-     * Add configuration time {@link FsmEngine.Trigger}. Cant call after {@link #start(Object, Object)} has been called.
+     * Exit the current state and enter the passed one.
      *
-     * @param trigger trigger def
+     * @param nextCylinder validated Cylinder to move to
+     * @param optionalInputData can be null, already validated against nextCylinder
+     * @param triggerEnum trigger causing this transition, null for {@link #nextState(Object, Object)}
+     */
+    private void transitionTo(Cylinder<E, T> nextCylinder, Object optionalInputData, T triggerEnum)
+    {
+        Extensions<E, T> extensions = mExtensions;
+        if(extensions != null && (extensions.metrics != null || extensions.tracer != null))
+        {
+            transitionToMeasured(extensions, nextCylinder, optionalInputData, triggerEnum);
+            return;
+        }
+
+        Cylinder<E, T> previousCylinder = mCurrentCylinder;
+        if(previousCylinder != null)
+            runExitActions(previousCylinder, nextCylinder, mCurrentCylindersData, this);
+
+        mCurrentCylinder = nextCylinder;
+        mCurrentCylindersData = optionalInputData;
+        if(extensions != null)
+        {
+            if(extensions.journal != null)
+                journal(previousCylinder, triggerEnum);
+            if(extensions.history != null)
+                recordHistory(previousCylinder, triggerEnum, System.nanoTime());
+            if(extensions.timingWheel != null)
+                armTimeout(nextCylinder);
+        }
+        runEnterActions(previousCylinder, nextCylinder, mCurrentCylindersData, this);
+
+        notifyObserver();
+    }
+
+    /**
+     * {@link #transitionTo(Cylinder, Object, Object)} recording dwell time, entry count and action durations to the
+     * metrics and / or tracer
      */
-    private FsmEngine<E, T> addTrigger(Trigger<E, T> trigger)
+    private void transitionToMeasured(Extensions<E, T> extensions, Cylinder<E, T> nextCylinder, Object optionalInputData, T triggerEnum)
     {
-        if(mStarted)
-            throw new IllegalStateException("Cant configure after already started!");
+        FsmMetrics<E, T> metrics = extensions.metrics;
+        FsmTracer<E, T> tracer = extensions.tracer;
+        Cylinder<E, T> previousCylinder = mCurrentCylinder;
+        long nowNanos = System.nanoTime();
+
+        if(previousCylinder != null)
+        {
+            long dwellNanos = nowNanos - extensions.enteredAtNanos;
+            if(metrics != null)
+                metrics.recordDwell(previousCylinder, dwellNanos);
+            if(previousCylinder.exitAction != null || previousCylinder.path != null)
+            {
+                runExitActions(previousCylinder, nextCylinder, mCurrentCylindersData, this);
+                long exitedNanos = System.nanoTime();
+                if(metrics != null)
+                    metrics.recordExitAction(previousCylinder, exitedNanos - nowNanos);
+                if(tracer != null)
+                    tracer.onActionRun(FsmTracer.ActionType.EXIT, previousCylinder.stateEnum, triggerEnum, exitedNanos - nowNanos);
+                nowNanos = exitedNanos;
+            }
+            if(tracer != null)
+                tracer.onStateExited(previousCylinder.stateEnum, dwellNanos);
+        }
 
-        Map<E, Trigger<E, T>> triggersForEvent = mTriggerMap.get(trigger.onTrigger);
-        if(triggersForEvent == null)
+        mCurrentCylinder = nextCylinder;
+        mCurrentCylindersData = optionalInputData;
+        extensions.enteredAtNanos = nowNanos;
+        if(extensions.journal != null)
+            journal(previousCylinder, triggerEnum);
+        if(extensions.history != null)
+            recordHistory(previousCylinder, triggerEnum, nowNanos);
+        if(extensions.timingWheel != null)
+            armTimeout(nextCylinder);
+        if(metrics != null)
+            metrics.recordEntry(nextCylinder);
+        if(tracer != null)
+            tracer.onStateEntered(nextCylinder.stateEnum, previousCylinder == null ? null : previousCylinder.stateEnum, triggerEnum);
+        if(nextCylinder.enterAction != null || nextCylinder.path != null)
         {
-            triggersForEvent = new HashMap<>();
-            mTriggerMap.put(trigger.onTrigger, triggersForEvent);
+            //exclude the tracers own callback
+            long enteringNanos = tracer != null ? System.nanoTime() : nowNanos;
+            runEnterActions(previousCylinder, nextCylinder, mCurrentCylindersData, this);
+            long durationNanos = System.nanoTime() - enteringNanos;
+            if(metrics != null)
+                metrics.recordEnterAction(nextCylinder, durationNanos);
+            if(tracer != null)
+                tracer.onActionRun(FsmTracer.ActionType.ENTER, nextCylinder.stateEnum, triggerEnum, durationNanos);
         }
+
+        notifyObserver();
+    }
+
+    /**
+     * Arm this engines timer for the timeout of the state just entered, or cancel it if that state has none
+     */
+    private void armTimeout(Cylinder<E, T> cylinder)
+    {
+        Extensions<E, T> extensions = mExtensions;
+        if(cylinder.timeoutTrigger != null)
+            extensions.timingWheel.schedule(extensions.timer, cylinder.timeoutNanos);
         else
+            extensions.timingWheel.cancel(extensions.timer);
+    }
+
+    /**
+     * Called by {@link TimingWheel} once the current states timeout has expired
+     */
+    void fireTimeout()
+    {
+        trigger(mCurrentCylinder.timeoutTrigger, null);
+    }
+
+    /**
+     * Append the state change just committed to the journal
+     */
+    private void journal(Cylinder<E, T> previousCylinder, T triggerEnum)
+    {
+        mExtensions.journal.append(mExtensions.journalMachineId,
+                previousCylinder == null ? -1 : previousCylinder.index,
+                mCurrentCylinder.index,
+                triggerEnum == null ? -1 : mDefinition.triggerIndexFor(triggerEnum),
+                getCurrentCylindersData());
+    }
+
+    /**
+     * Record the state change just committed to the history
+     */
+    private void recordHistory(Cylinder<E, T> previousCylinder, T triggerEnum, long nanoTime)
+    {
+        mExtensions.history.record(previousCylinder == null ? -1 : previousCylinder.index,
+                mCurrentCylinder.index,
+                triggerEnum == null ? -1 : mDefinition.triggerIndexFor(triggerEnum),
+                nanoTime);
+    }
+
+    /**
+     * Slow path for a rejected {@link #nextState(Object, Object)}, throws with a descriptive message.
+     */
+    private void throwNextStateRejection(E state, Object optionalInputData)
+    {
+        Cylinder<E, T> nextCylinder = mDefinition.cylinderFor(state);
+        if(nextCylinder == null)
+            throw new NullPointerException(state.getClass().getName()+"."+state.toString()+" does not exist in map!");
+        nextCylinder.checkInputData(optionalInputData);
+    }
+
+    /**
+     * Slow path for a rejected {@link #trigger(Object, Object)}, throws with a descriptive message.
+     */
+    private void throwTriggerRejection(T triggerEnum, Object optionalInputData)
+    {
+        Trigger<E, T> trigger = mDefinition.requireTrigger(mCurrentCylinder, triggerEnum).requireMatch(optionalInputData);
+        trigger.checkInputData(optionalInputData);
+        if(trigger.toState != null)
+            throwNextStateRejection(trigger.toState, optionalInputData);
+    }
+
+    /**
+     * Run the exit actions for leaving the passed state: its own, then those of each parent up to (but excluding) the
+     * closest parent shared with the next state
+     *
+     * @param previousCylinder state being left
+     * @param nextCylinder state being entered
+     * @param optionalInputData data of the state being left, can be null
+     * @param context passed to the actions
+     */
+    static <E, T> void runExitActions(Cylinder<E, T> previousCylinder, Cylinder<E, T> nextCylinder, Object optionalInputData, TransitionContext<E, T> context)
+    {
+        if(previousCylinder.path == null)
         {
-            //check a trigger for this from-state does not already exist
-            if(triggersForEvent.get(trigger.fromState) != null)
-                throw new IllegalStateException("You have already defined a Trigger from this event/fromState combo");
+            if(previousCylinder.exitAction != null)
+                doAction(previousCylinder.exitAction, optionalInputData, context);
+            return;
         }
 
-        triggersForEvent.put(trigger.fromState, trigger);
-        return this;
+        Cylinder<E, T>[] path = previousCylinder.path;
+        for(int depth = path.length - 1, shared = sharedDepth(previousCylinder, nextCylinder); depth >= shared; depth--)
+            if(path[depth].exitAction != null)
+                doAction(path[depth].exitAction, optionalInputData, context);
+    }
+
+    /**
+     * Run the enter actions for entering the passed state: those of each parent below the closest parent shared with
+     * the previous state, then its own
+     *
+     * @param previousCylinder state being left, null when starting
+     * @param nextCylinder state being entered
+     * @param optionalInputData data of the state being entered, can be null
+     * @param context passed to the actions
+     */
+    static <E, T> void runEnterActions(Cylinder<E, T> previousCylinder, Cylinder<E, T> nextCylinder, Object optionalInputData, TransitionContext<E, T> context)
+    {
+        if(nextCylinder.path == null)
+        {
+            if(nextCylinder.enterAction != null)
+                doAction(nextCylinder.enterAction, optionalInputData, context);
+            return;
+        }
+
+        Cylinder<E, T>[] path = nextCylinder.path;
+        for(int depth = previousCylinder == null ? 0 : sharedDepth(previousCylinder, nextCylinder); depth < path.length; depth++)
+            if(path[depth].enterAction != null)
+                doAction(path[depth].enterAction, optionalInputData, context);
+    }
+
+    /**
+     * @return number of parents shared by the passed states and left untouched when moving between them. The states
+     * themselves are never shared, so a self transition exits and re-enters the state.
+     */
+    private static <E, T> int sharedDepth(Cylinder<E, T> previousCylinder, Cylinder<E, T> nextCylinder)
+    {
+        if(previousCylinder.path == null || nextCylinder.path == null)
+            return 0;
+        int maxShared = Math.min(previousCylinder.path.length, nextCylinder.path.length) - 1;
+        int shared = 0;
+        while(shared < maxShared && previousCylinder.path[shared] == nextCylinder.path[shared])
+            shared++;
+        return shared;
+    }
+
+    /**
+     * Execute (enter/exit) action
+     *
+     * @param action action to execute
+     * @param optionalInputData can be null
+     * @param context passed to the action
+     */
+    static <E, T> void doAction(TransitionAction<E, T, Object> action, Object optionalInputData, TransitionContext<E, T> context)
+    {
+        try
+        {
+            action.run(dataFor(action, optionalInputData), context);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the data to pass the passed action. {@link Action}s are passed {@link LazyData} as is and evaluate it
+     * only if their getters are called, other actions receive the evaluated data.
+     */
+    static Object dataFor(TransitionAction<?, ?, ?> action, Object optionalInputData)
+    {
+        return action instanceof Action ? optionalInputData : LazyData.resolve(optionalInputData);
     }
 
     //=====================================================//
@@ -285,21 +977,43 @@ public class FsmEngine<E, T>
      */
     public static class Trigger<E, T>
     {
-        private final T onTrigger;
-        private final E fromState;
+        private final FsmDefinition<E, T> definition;
+        final T onTrigger;
+        final E fromState;
         //opt
-        private E toState;
+        E toState;
+        /**
+         * Resolved at {@link FsmDefinition#freeze()}. Null if no toState or toState has no Cylinder.
+         */
+        Cylinder<E, T> toCylinder;
+        //opt
+        TransitionAction<E, T, Object> transitionAction;
         //opt
-        private Action transitionAction;
+        Class<?> requiredDataType;
+        /**
+         * Null if no {@link #requiredDataType}
+         */
+        DataTypeCheck dataTypeCheck;
         //opt
-        private Class<?> requiredDataType;
+        TriggerGuard<Object> guard;
+        /**
+         * Further Triggers defined for the same event/fromState combo as this, the first one. Definition time only.
+         */
+        List<Trigger<E, T>> alternatives;
+        /**
+         * Set at {@link FsmDefinition#freeze()} if this is a routing Trigger standing in for all Triggers of a guarded
+         * event/fromState combo, in guard evaluation order. Null otherwise.
+         */
+        Trigger<E, T>[] guardChain;
 
         /**
+         * @param definition owning definition
          * @param onTrigger
          * @param fromState
          */
-        Trigger(T onTrigger, E fromState)
+        Trigger(FsmDefinition<E, T> definition, T onTrigger, E fromState)
         {
+            this.definition = definition;
             this.onTrigger = onTrigger;
             this.fromState = fromState;
         }
@@ -310,6 +1024,7 @@ public class FsmEngine<E, T>
          * @param toState
          */
         public Trigger<E,T> setToState(E toState) {
+            definition.checkNotFrozen();
             this.toState = toState;
             return this;
         }
@@ -320,22 +1035,127 @@ public class FsmEngine<E, T>
          * @param transitionAction
          */
         public Trigger<E,T> setAction(Action transitionAction) {
-            this.transitionAction = transitionAction;
+            definition.checkNotFrozen();
+            this.transitionAction = asTransitionAction(transitionAction);
+            return this;
+        }
+
+        /**
+         * Optional. Preferred over {@link #setAction(Action)} when this definition is shared.
+         *
+         * @param transitionAction
+         */
+        @SuppressWarnings("unchecked")
+        public Trigger<E,T> setAction(TransitionAction<E, T, ?> transitionAction) {
+            definition.checkNotFrozen();
+            this.transitionAction = (TransitionAction<E, T, Object>) transitionAction;
             return this;
         }
 
         /**
          * Optional. If this Triggers {@link Action} classe expects a input data type you can specify
-         * it here. If this trigger event is received type was not passed an exception will be thrown.
+         * it here. If this trigger event is received and an instance of the type (or a subtype) was not passed an
+         * exception will be thrown.
          *
          * @param requiredDataType
          * @return
          */
         public Trigger<E,T> setRequiredDataType(Class<?> requiredDataType)
         {
+            definition.checkNotFrozen();
             this.requiredDataType = requiredDataType;
+            this.dataTypeCheck = requiredDataType == null ? null : new DataTypeCheck(requiredDataType);
             return this;
         }
+
+        /**
+         * @param optionalInputData data passed with this trigger
+         * @return false if {@link #checkInputData(Object)} would throw
+         */
+        boolean acceptsInputData(Object optionalInputData)
+        {
+            return dataTypeCheck == null || dataTypeCheck.accepts(optionalInputData);
+        }
+
+        /**
+         * @param optionalInputData data passed with this trigger
+         * @throws NullPointerException if data is required but none passed
+         * @throws IllegalArgumentException if the passed data is not of the required type
+         */
+        void checkInputData(Object optionalInputData)
+        {
+            if(requiredDataType != null)
+            {
+                if(optionalInputData == null)
+                    throw new NullPointerException(onTrigger+" requires "+requiredDataType.getName());
+                if(!dataTypeCheck.accepts(optionalInputData))
+                    throw new IllegalArgumentException(onTrigger+" requires "+requiredDataType.getName());
+            }
+        }
+
+        /**
+         * @param optionalInputData data passed with this trigger
+         * @return false if this Trigger or its to-state would reject the passed data
+         */
+        boolean acceptsTransitionData(Object optionalInputData)
+        {
+            return acceptsInputData(optionalInputData)
+                    && (toCylinder == null || toCylinder.acceptsInputData(optionalInputData));
+        }
+
+        /**
+         * Candidates whose Trigger or to-state data type rejects the data are skipped without evaluating their guard, so
+         * a typed guard is never passed data of another type.
+         *
+         * @param optionalInputData data passed with this trigger
+         * @return the Trigger which handles the passed data: this unless this is a routing Trigger, in which case the
+         * first of {@link #guardChain} accepting the data type and whose guard accepts, else the first rejecting the
+         * data type (whose dispatch then reports the mismatch), else null
+         */
+        Trigger<E, T> match(Object optionalInputData)
+        {
+            if(guardChain == null)
+                return this;
+            Trigger<E, T> mismatch = null;
+            for(Trigger<E, T> candidate : guardChain)
+            {
+                if(!candidate.acceptsTransitionData(optionalInputData))
+                {
+                    if(mismatch == null)
+                        mismatch = candidate;
+                }
+                else if(candidate.guard == null || candidate.guard.accepts(LazyData.resolve(optionalInputData)))
+                {
+                    return candidate;
+                }
+            }
+            return mismatch;
+        }
+
+        /**
+         * @param optionalInputData data passed with this trigger
+         * @return see {@link #match(Object)}
+         * @throws IllegalStateException if no guard accepts
+         */
+        Trigger<E, T> requireMatch(Object optionalInputData)
+        {
+            Trigger<E, T> match = match(optionalInputData);
+            if(match == null)
+                throw new IllegalStateException("Trigger "+onTrigger+" received but no guard accepted it for state :"+fromState);
+            return match;
+        }
+
+        /**
+         * Run this triggers transition action, if any
+         *
+         * @param optionalInputData can be null
+         * @param context passed to the action
+         */
+        void runTransitionAction(Object optionalInputData, TransitionContext<E, T> context)
+        {
+            if(transitionAction != null)
+                transitionAction.run(dataFor(transitionAction, optionalInputData), context);
+        }
     }
 
     /**
@@ -355,44 +1175,145 @@ public class FsmEngine<E, T>
      */
     public static class Cylinder<E, T>
     {
-        private final E stateEnum;
-        private Action enterAction;
-        private Action exitAction;
-        private Class<?> requiredDataType;
+        private final FsmDefinition<E, T> definition;
+        final E stateEnum;
+        /**
+         * Assigned at {@link FsmDefinition#freeze()}. The state ordinal for enum states, otherwise the definition order.
+         */
+        int index = -1;
+        TransitionAction<E, T, Object> enterAction;
+        TransitionAction<E, T, Object> exitAction;
+        Class<?> requiredDataType;
+        /**
+         * Null if no {@link #requiredDataType}
+         */
+        DataTypeCheck dataTypeCheck;
+        //opt
+        E parentState;
+        //opt
+        T timeoutTrigger;
+        long timeoutNanos;
+        /**
+         * Resolved at {@link FsmDefinition#freeze()}. Ancestors from the root down to and including this Cylinder, null if
+         * this state has no parent.
+         */
+        Cylinder<E, T>[] path;
 
-        private Cylinder(E stateEnum)
+        Cylinder(FsmDefinition<E, T> definition, E stateEnum)
         {
+            this.definition = definition;
             this.stateEnum = stateEnum;
         }
 
-        private E getStateEnum() {
-            return stateEnum;
+        public Cylinder<E,T> setEnterAction(Action enterAction)
+        {
+            definition.checkNotFrozen();
+            this.enterAction = asTransitionAction(enterAction);
+            return this;
         }
 
-        public Cylinder<E,T> setEnterAction(Action enterAction)
+        /**
+         * Preferred over {@link #setEnterAction(Action)} when this definition is shared.
+         */
+        @SuppressWarnings("unchecked")
+        public Cylinder<E,T> setEnterAction(TransitionAction<E, T, ?> enterAction)
         {
-            this.enterAction = enterAction;
+            definition.checkNotFrozen();
+            this.enterAction = (TransitionAction<E, T, Object>) enterAction;
             return this;
         }
 
         public Cylinder<E,T> setExitAction(Action exitAction)
         {
-            this.exitAction = exitAction;
+            definition.checkNotFrozen();
+            this.exitAction = asTransitionAction(exitAction);
+            return this;
+        }
+
+        /**
+         * Preferred over {@link #setExitAction(Action)} when this definition is shared.
+         */
+        @SuppressWarnings("unchecked")
+        public Cylinder<E,T> setExitAction(TransitionAction<E, T, ?> exitAction)
+        {
+            definition.checkNotFrozen();
+            this.exitAction = (TransitionAction<E, T, Object>) exitAction;
+            return this;
+        }
+
+        /**
+         * Optional. Makes this state a substate of the passed one: it inherits every Trigger of the parent (and its
+         * parents) it does not define itself, and moving between states runs the exit actions up to, and the enter
+         * actions down from, their closest common parent. The parent must be defined as a Cylinder too.
+         *
+         * @param parentState
+         * @return
+         */
+        public Cylinder<E,T> setParent(E parentState)
+        {
+            definition.checkNotFrozen();
+            this.parentState = parentState;
+            return this;
+        }
+
+        /**
+         * Optional. Fire the passed trigger (with no data) if an engine stays in this state for the passed duration.
+         * Only applies to engines with a {@link TimingWheel} set via {@link FsmEngine#setTimingWheel(TimingWheel)}. A
+         * Trigger must be defined for the timeout trigger from this state.
+         *
+         * @param duration
+         * @param unit
+         * @param timeoutTrigger
+         * @return
+         */
+        public Cylinder<E,T> setTimeout(long duration, TimeUnit unit, T timeoutTrigger)
+        {
+            definition.checkNotFrozen();
+            this.timeoutNanos = unit.toNanos(duration);
+            this.timeoutTrigger = timeoutTrigger;
             return this;
         }
 
         /**
          * Optional. If this Cylinders {@link Action} classes are expected a input data type you can specify
-         * it here. If this state is attempted to be created and the type was not passed an exception will be thrown.
+         * it here. If this state is attempted to be created and an instance of the type (or a subtype) was not passed
+         * an exception will be thrown.
          *
          * @param requiredDataType
          * @return
          */
         public Cylinder<E,T> setRequiredDataType(Class<?> requiredDataType)
         {
+            definition.checkNotFrozen();
             this.requiredDataType = requiredDataType;
+            this.dataTypeCheck = requiredDataType == null ? null : new DataTypeCheck(requiredDataType);
             return this;
         }
+
+        /**
+         * @param optionalInputData data passed when entering this state
+         * @return false if {@link #checkInputData(Object)} would throw
+         */
+        boolean acceptsInputData(Object optionalInputData)
+        {
+            return dataTypeCheck == null
+                    ? optionalInputData == null
+                    : dataTypeCheck.accepts(optionalInputData);
+        }
+
+        /**
+         * @param optionalInputData data passed when entering this state
+         * @throws IllegalStateException if the passed data does not match {@link #setRequiredDataType(Class)}
+         */
+        void checkInputData(Object optionalInputData)
+        {
+            if(requiredDataType == null && optionalInputData != null)
+                throw new IllegalStateException("Current state does not require any data whereas some has been passed: "+stateEnum+" | "+LazyData.typeOf(optionalInputData).getName());
+            if(requiredDataType != null && optionalInputData == null)
+                throw new IllegalStateException("Current state requires input data whereas none has been passed: "+stateEnum+" | "+requiredDataType.getName());
+            if(dataTypeCheck != null && !dataTypeCheck.accepts(optionalInputData))
+                throw new IllegalStateException("Current state requires input data of another type: "+stateEnum+" | "+requiredDataType.getName()+" | "+LazyData.typeOf(optionalInputData).getName());
+        }
     }
 
     //=====================================================//
@@ -403,19 +1324,31 @@ public class FsmEngine<E, T>
      * Actions are defined at Engine definition time and represent Enter/Exit actions for a state.
      *
      * Retain no-arg constructor as created with reflection. This means the class will need to be public also (and not a non-static inner class)
+     *
+     * The input data is held on the instance for the duration of {@link #run()} (and restored afterwards so transitions
+     * started from inside an action do not overwrite it). An instance should therefore not be run by more than one
+     * thread at a time - use {@link TransitionAction} for definitions shared across threads.
      */
-    public abstract static class Action
+    public abstract static class Action implements TransitionAction<Object, Object, Object>
     {
         private Object optionalInputData;
 
         /**
-         * Optional data object that can be used by this action
-         *
-         * @param optionalInputData can be null
+         * Adapts {@link TransitionAction} onto {@link #run()}
          */
-        void setInputData(Object optionalInputData)
+        @Override
+        public final void run(Object inputData, TransitionContext<Object, Object> context)
         {
-            this.optionalInputData = optionalInputData;
+            Object outerInputData = optionalInputData;
+            optionalInputData = inputData;
+            try
+            {
+                run();
+            }
+            finally
+            {
+                optionalInputData = outerInputData;
+            }
         }
 
         /**
@@ -423,7 +1356,7 @@ public class FsmEngine<E, T>
          */
         public Object getOptionalInputData()
         {
-            return optionalInputData;
+            return LazyData.resolve(optionalInputData);
         }
 
         /**
@@ -432,6 +1365,7 @@ public class FsmEngine<E, T>
         @SuppressWarnings("unchecked")
         public <C> C getOptionalInputDataAs(Class<C> clazz)
         {
+            Object optionalInputData = getOptionalInputData();
             try
             {
                 if(optionalInputData == null)
@@ -447,6 +1381,17 @@ public class FsmEngine<E, T>
         public abstract void run();
     }
 
+    //=====================================================//
+    // TransitionAction adapter
+    //=====================================================//
+
+    @SuppressWarnings("unchecked")
+    private static <E, T> TransitionAction<E, T, Object> asTransitionAction(Action action)
+    {
+        //Action ignores its context so is safe to use with any state / trigger type
+        return (TransitionAction<E, T, Object>) (TransitionAction<?, ?, ?>) action;
+    }
+
     //=====================================================//
     // Observable
     //=====================================================//
@@ -461,19 +1406,110 @@ public class FsmEngine<E, T>
     }
 
     /**
+     * Add an observer, notified after every transition in the order observers were added. Observers run synchronously
+     * on the transitioning thread, so wrap slow observers in an {@link AsyncObserver}.
+     *
      * @param observer will be notified instantly if the fsm has some state.
      */
     public void addObserver(Observer<E> observer)
     {
-        this.mObserver = observer;
-        notifyObserver();
+        if(observer == null)
+            return;
+
+        Observer<E>[] observers = Arrays.copyOf(mObservers, mObservers.length + 1);
+        observers[observers.length - 1] = observer;
+        mObservers = observers;
+        if(mCurrentCylinder != null)
+            observer.currentState(mCurrentCylinder.stateEnum, getCurrentCylindersData());
+    }
+
+    /**
+     * @param observer
+     * @return true if the observer was registered
+     */
+    public boolean removeObserver(Observer<E> observer)
+    {
+        Observer<E>[] observers = mObservers;
+        for(int i = 0; i < observers.length; i++)
+        {
+            if(observers[i] == observer)
+            {
+                Observer<E>[] remaining = Arrays.copyOf(observers, observers.length - 1);
+                System.arraycopy(observers, i + 1, remaining, i, observers.length - i - 1);
+                mObservers = remaining;
+                return true;
+            }
+        }
+        return false;
     }
 
     private void notifyObserver()
     {
-        if(mObserver != null && mCurrentCylinder != null)
-            mObserver.currentState(mCurrentCylinder.stateEnum, mCurrentCylindersData);
+        if(mCurrentCylinder == null || mObservers.length == 0)
+            return;
+        //observers receive evaluated data
+        Object data = getCurrentCylindersData();
+        for(Observer<E> observer : mObservers)
+            observer.currentState(mCurrentCylinder.stateEnum, data);
     }
 
+    @SuppressWarnings("unchecked")
+    private static <E> Observer<E>[] noObservers()
+    {
+        return (Observer<E>[]) NO_OBSERVERS;
+    }
+
+    private static final Observer<?>[] NO_OBSERVERS = new Observer<?>[0];
+
+    //=====================================================//
+    // Extensions class
+    //=====================================================//
 
+    /**
+     * Per engine state of the optional features, held apart so engines not using any stay small
+     */
+    private static final class Extensions<E, T>
+    {
+        /**
+         * Null unless enabled via {@link FsmEngine#setMetrics(FsmMetrics)}
+         */
+        FsmMetrics<E, T> metrics;
+        /**
+         * Null unless enabled via {@link FsmEngine#setTracer(FsmTracer)}
+         */
+        FsmTracer<E, T> tracer;
+        /**
+         * Null unless enabled via {@link FsmEngine#setHistory(FsmHistory)}
+         */
+        FsmHistory<E, T> history;
+        /**
+         * {@link System#nanoTime()} the current state was entered at. Only maintained when metrics or tracing are
+         * enabled.
+         */
+        long enteredAtNanos;
+
+        /**
+         * Null unless enabled via {@link FsmEngine#setJournal(FsmJournal, long)}
+         */
+        FsmJournal journal;
+        long journalMachineId;
+
+        /**
+         * Null unless enabled via {@link FsmEngine#setTimingWheel(TimingWheel)}
+         */
+        TimingWheel timingWheel;
+        /**
+         * The engines timer on {@link #timingWheel}, reused for every state entered
+         */
+        TimingWheel.Timer timer;
+
+        /**
+         * Null unless enabled via {@link FsmEngine#setRunToCompletion(boolean)}
+         */
+        EventQueue eventQueue;
+        /**
+         * True while applying an event in run to completion mode
+         */
+        boolean dispatching;
+    }
 }
@@ -0,0 +1,88 @@
+package com.kodroid.engine;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles {@link FsmEngine}s for short lived machines, e.g. request scoped workflows.
+ *
+ * All engines share the pools frozen {@link FsmDefinition}, so no Cylinders, Triggers or lookup tables are allocated
+ * per machine, and released engines are {@link FsmEngine#reset()} and kept for reuse instead of becoming garbage. Idle
+ * engines are held per thread, so acquiring and releasing never contend. An engine can be released on a different
+ * thread to the one it was acquired on, it then joins that threads idle engines.
+ *
+ * Settings such as metrics survive being recycled, so should be applied to every engine alike. A journal does not, as
+ * it identifies the machine, so set it again via {@link FsmEngine#setJournal(FsmJournal, long)} after acquiring.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class FsmEnginePool<E, T>
+{
+    public static final int DEFAULT_MAX_IDLE_PER_THREAD = 16;
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final int mMaxIdlePerThread;
+    private final ThreadLocal<ArrayDeque<FsmEngine<E, T>>> mIdle = new ThreadLocal<ArrayDeque<FsmEngine<E, T>>>()
+    {
+        @Override
+        protected ArrayDeque<FsmEngine<E, T>> initialValue()
+        {
+            return new ArrayDeque<>();
+        }
+    };
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     */
+    public FsmEnginePool(FsmDefinition<E, T> definition)
+    {
+        this(definition, DEFAULT_MAX_IDLE_PER_THREAD);
+    }
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param maxIdlePerThread max released engines kept per thread, further engines are left for the GC
+     */
+    public FsmEnginePool(FsmDefinition<E, T> definition, int maxIdlePerThread)
+    {
+        mDefinition = definition.freeze();
+        mMaxIdlePerThread = maxIdlePerThread;
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * @return an idle engine if this thread has one, else a new engine. Not yet started.
+     */
+    public FsmEngine<E, T> acquire()
+    {
+        FsmEngine<E, T> engine = mIdle.get().pollLast();
+        return engine == null ? new FsmEngine<>(mDefinition) : engine;
+    }
+
+    /**
+     * Reset the passed engine and keep it for reuse. The engine must not be used by the caller after this.
+     *
+     * @param engine must have been created for this pools definition
+     */
+    public void release(FsmEngine<E, T> engine)
+    {
+        if(engine.getDefinition() != mDefinition)
+            throw new IllegalArgumentException("Engine was created for a different definition");
+
+        engine.reset();
+        ArrayDeque<FsmEngine<E, T>> idle = mIdle.get();
+        if(idle.size() < mMaxIdlePerThread)
+            idle.addLast(engine);
+    }
+
+    /**
+     * @return the definition shared by all engines of this pool
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
+    }
+}
@@ -0,0 +1,208 @@
+package com.kodroid.engine;
+
+/**
+ * Fixed capacity record of the most recent transitions of a single {@link FsmEngine}, for post-mortem diagnostics.
+ * Enabled per engine via {@link FsmEngine#setHistory(FsmHistory)}, which also attaches it (as a suppressed
+ * {@link Dump}) to any exception thrown from {@link FsmEngine#trigger(Object, Object)} /
+ * {@link FsmEngine#nextState(Object, Object)}, so a rejected trigger shows how the machine reached its state.
+ *
+ * Each transition is held as a from-state index, to-state index, trigger index and {@link System#nanoTime()} in
+ * preallocated primitive ring buffers, so recording never allocates and an enabled history costs capacity * 20 bytes.
+ * Once full the oldest transition is overwritten. States and triggers are only looked up when queried.
+ *
+ * Belongs to one engine. Not thread safe.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public final class FsmHistory<E, T>
+{
+    /**
+     * From-state / trigger index of transitions which had none
+     */
+    private static final int NONE = -1;
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final int[] mFromStates;
+    private final int[] mToStates;
+    private final int[] mTriggers;
+    private final long[] mNanoTimes;
+    /**
+     * Total transitions recorded, the next is written to mCount % capacity
+     */
+    private long mCount;
+
+    /**
+     * @param definition definition of the engine this will record, will be frozen if not already
+     * @param capacity number of most recent transitions held
+     */
+    public FsmHistory(FsmDefinition<E, T> definition, int capacity)
+    {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        mDefinition = definition.freeze();
+        mFromStates = new int[capacity];
+        mToStates = new int[capacity];
+        mTriggers = new int[capacity];
+        mNanoTimes = new long[capacity];
+    }
+
+    //=====================================================//
+    // Recording
+    //=====================================================//
+
+    /**
+     * Record a committed transition
+     *
+     * @param fromState Cylinder index, or -1 when started
+     * @param toState Cylinder index
+     * @param trigger trigger index, or -1 for {@link FsmEngine#nextState(Object, Object)} / start
+     * @param nanoTime
+     */
+    void record(int fromState, int toState, int trigger, long nanoTime)
+    {
+        int slot = (int) (mCount % mToStates.length);
+        mFromStates[slot] = fromState;
+        mToStates[slot] = toState;
+        mTriggers[slot] = trigger;
+        mNanoTimes[slot] = nanoTime;
+        mCount++;
+    }
+
+    /**
+     * Attach a {@link Dump} of this history to the passed exception, unless one is already attached (e.g. by a nested
+     * trigger from inside an action)
+     *
+     * @param e
+     */
+    void attachTo(Throwable e)
+    {
+        for(Throwable suppressed : e.getSuppressed())
+            if(suppressed instanceof Dump)
+                return;
+        e.addSuppressed(new Dump(toString()));
+    }
+
+    //=====================================================//
+    // Queries
+    //=====================================================//
+
+    /**
+     * @return number of transitions held, at most the capacity
+     */
+    public int size()
+    {
+        return (int) Math.min(mCount, mToStates.length);
+    }
+
+    /**
+     * @return number of transitions recorded since created or cleared, including those overwritten
+     */
+    public long getTransitionCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * @param i 0 for the oldest transition held up to {@link #size()} - 1 for the most recent
+     * @return state transitioned from, null for the starting transition
+     */
+    public E getFromState(int i)
+    {
+        int fromState = mFromStates[slot(i)];
+        return fromState == NONE ? null : mDefinition.cylinderAt(fromState).stateEnum;
+    }
+
+    /**
+     * @param i 0 for the oldest transition held up to {@link #size()} - 1 for the most recent
+     * @return state transitioned to
+     */
+    public E getToState(int i)
+    {
+        return mDefinition.cylinderAt(mToStates[slot(i)]).stateEnum;
+    }
+
+    /**
+     * @param i 0 for the oldest transition held up to {@link #size()} - 1 for the most recent
+     * @return trigger causing the transition, null for {@link FsmEngine#nextState(Object, Object)} / start
+     */
+    public T getTrigger(int i)
+    {
+        int trigger = mTriggers[slot(i)];
+        return trigger == NONE ? null : mDefinition.triggerAt(trigger);
+    }
+
+    /**
+     * @param i 0 for the oldest transition held up to {@link #size()} - 1 for the most recent
+     * @return {@link System#nanoTime()} of the transition
+     */
+    public long getNanoTime(int i)
+    {
+        return mNanoTimes[slot(i)];
+    }
+
+    /**
+     * @return the definition of the engine this records
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
+    }
+
+    /**
+     * Drop all recorded transitions
+     */
+    public void clear()
+    {
+        mCount = 0;
+    }
+
+    /**
+     * @return one line per transition held, oldest first, timed relative to the most recent
+     */
+    @Override
+    public String toString()
+    {
+        int size = size();
+        StringBuilder builder = new StringBuilder();
+        builder.append("Last ").append(size).append(" of ").append(mCount).append(" transitions, oldest first:");
+        for(int i = 0; i < size; i++)
+        {
+            builder.append("\n  ").append(getFromState(i)).append(" -> ").append(getToState(i));
+            T trigger = getTrigger(i);
+            if(trigger != null)
+                builder.append(" on ").append(trigger);
+            builder.append(", ").append(getNanoTime(size - 1) - getNanoTime(i)).append("ns before last");
+        }
+        return builder.toString();
+    }
+
+    //=====================================================//
+    // Private
+    //=====================================================//
+
+    private int slot(int i)
+    {
+        if(i < 0 || i >= size())
+            throw new IndexOutOfBoundsException("Index "+i+" of "+size()+" transitions");
+        return (int) ((mCount - size() + i) % mToStates.length);
+    }
+
+    //=====================================================//
+    // Dump class
+    //=====================================================//
+
+    /**
+     * Snapshot of a {@link FsmHistory} attached as a suppressed exception. Carries no stack trace.
+     */
+    public static final class Dump extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Dump(String history)
+        {
+            super(history, null, false, false);
+        }
+    }
+}
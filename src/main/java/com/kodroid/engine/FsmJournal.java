@@ -0,0 +1,470 @@
+package com.kodroid.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of state transitions, written to memory-mapped segment files.
+ *
+ * Engines write to a journal via {@link FsmEngine#setJournal(FsmJournal, long)}. Every committed state change is
+ * appended as a compact binary record of
+ *
+ * <pre>
+ * int    record length (excluding this field), 0 marks the end of a segment
+ * int    CRC32 of the rest of the record
+ * long   machine id
+ * ushort from state index, 0xFFFF when starting
+ * ushort to state index
+ * ushort trigger index, 0xFFFF for {@link FsmEngine#nextState(Object, Object)}
+ * long   timestamp, millis since epoch
+ * int    data length, -1 for no data
+ * byte[] data, as encoded by the journals {@link DataCodec}
+ * </pre>
+ *
+ * Appending only copies into the mapped segment. Every groupCommitRecords records, and when rolling to a new segment,
+ * the journals flusher thread is woken to force the segments to disk (group commit) without holding the journal lock,
+ * so appends never wait for the disk. A crash can lose at most the records appended since the last completed force.
+ * {@link #flush()} forces synchronously on the calling thread. State / trigger indexes are those of the definition the
+ * engines use, at most 65534 of each, so a journal must be recovered with the same definition it was written with.
+ *
+ * {@link #recover(File, FsmDefinition, DataCodec)} rebuilds the latest state of every machine by replaying the journal,
+ * without running any actions. A torn or corrupt record (failed CRC) ends its segment. Replay carries on with the
+ * next segment, as a journal reopened after a crash always appends to a new one.
+ *
+ * Appends are synchronized so a journal can be shared by engines on different threads. Must be closed to stop the
+ * flusher thread.
+ */
+public class FsmJournal implements Closeable
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_GROUP_COMMIT_RECORDS = 256;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int CRC_SIZE = 4;
+    private static final int HEADER_SIZE = CRC_SIZE + 8 + 2 + 2 + 2 + 8 + 4;
+    private static final int NO_DATA = -1;
+    /**
+     * Unsigned short written for an absent from-state / trigger index, so the largest index is one less
+     */
+    private static final int NO_INDEX = 0xFFFF;
+
+    private final File mDirectory;
+    private final DataCodec mCodec;
+    private final int mSegmentSize;
+    private final int mGroupCommitRecords;
+    private final CRC32 mCrc = new CRC32();
+
+    private MappedByteBuffer mSegment;
+    /**
+     * Reused to assemble each record so its CRC can be computed before it is copied into the segment
+     */
+    private ByteBuffer mRecord = ByteBuffer.allocate(HEADER_SIZE);
+    private long mSegmentNumber;
+    private int mUncommittedRecords;
+    private boolean mClosed;
+    /**
+     * Segments rolled away from but not yet forced
+     */
+    private final List<MappedByteBuffer> mRetiredSegments = new ArrayList<>();
+    /**
+     * Set to wake {@link #mFlusher}
+     */
+    private boolean mFlushRequested;
+    /**
+     * First failure of a background force, rethrown by {@link #flush()} / {@link #close()}
+     */
+    private RuntimeException mFlushFailure;
+    private final Thread mFlusher = new Thread(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            runFlusher();
+        }
+    }, "FsmJournal flusher");
+
+    /**
+     * @param directory directory holding the segment files, created if needed
+     * @param codec codec for state data, may be null if no state requires data
+     * @throws IOException
+     */
+    public FsmJournal(File directory, DataCodec codec) throws IOException
+    {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_GROUP_COMMIT_RECORDS);
+    }
+
+    /**
+     * @param directory directory holding the segment files, created if needed. Appending always starts a new segment
+     *                  after any already present.
+     * @param codec codec for state data, may be null if no state requires data
+     * @param segmentSize size in bytes of each segment file
+     * @param groupCommitRecords number of records appended between forcing the segment to disk, in the background
+     * @throws IOException
+     */
+    public FsmJournal(File directory, DataCodec codec, int segmentSize, int groupCommitRecords) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create "+directory);
+
+        mDirectory = directory;
+        mCodec = codec;
+        mSegmentSize = segmentSize;
+        mGroupCommitRecords = groupCommitRecords;
+
+        File[] segments = segmentFiles(directory);
+        mSegmentNumber = segments.length == 0 ? 0 : segmentNumber(segments[segments.length - 1]) + 1;
+        mSegment = mapSegment(mSegmentNumber);
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    //=====================================================//
+    // Appending
+    //=====================================================//
+
+    /**
+     * Append a transition record. Called by {@link FsmEngine} for each committed state change.
+     *
+     * @param machineId
+     * @param fromIndex from state index, -1 when starting
+     * @param toIndex to state index
+     * @param triggerIndex trigger index, -1 if not caused by a trigger
+     * @param optionalData state data, encoded with this journals codec
+     */
+    synchronized void append(long machineId, int fromIndex, int toIndex, int triggerIndex, Object optionalData)
+    {
+        if(mClosed)
+            throw new IllegalStateException("Journal closed");
+
+        if(fromIndex >= NO_INDEX || toIndex < 0 || toIndex >= NO_INDEX || triggerIndex >= NO_INDEX)
+            throw new IllegalArgumentException("Journal supports at most "+NO_INDEX+" states / triggers");
+
+        byte[] data = null;
+        if(optionalData != null)
+        {
+            if(mCodec == null)
+                throw new IllegalStateException("Journal has no DataCodec to encode "+optionalData.getClass().getName());
+            data = mCodec.encode(optionalData);
+        }
+
+        int recordLength = HEADER_SIZE + (data == null ? 0 : data.length);
+        //leave room for the record length and the trailing end of segment marker
+        if(recordLength + 8 > mSegmentSize)
+            throw new IllegalArgumentException("Record of "+recordLength+" bytes exceeds segment size");
+        if(mSegment.remaining() < recordLength + 8)
+            rollSegment();
+
+        int bodyLength = recordLength - CRC_SIZE;
+        if(mRecord.capacity() < bodyLength)
+            mRecord = ByteBuffer.allocate(bodyLength);
+        mRecord.clear();
+        mRecord.putLong(machineId);
+        mRecord.putShort((short) (fromIndex < 0 ? NO_INDEX : fromIndex));
+        mRecord.putShort((short) toIndex);
+        mRecord.putShort((short) (triggerIndex < 0 ? NO_INDEX : triggerIndex));
+        mRecord.putLong(System.currentTimeMillis());
+        mRecord.putInt(data == null ? NO_DATA : data.length);
+        if(data != null)
+            mRecord.put(data);
+        mCrc.reset();
+        mCrc.update(mRecord.array(), 0, bodyLength);
+
+        mSegment.putInt(recordLength);
+        mSegment.putInt((int) mCrc.getValue());
+        mSegment.put(mRecord.array(), 0, bodyLength);
+
+        if(++mUncommittedRecords >= mGroupCommitRecords)
+            requestFlush();
+    }
+
+    /**
+     * Force all appended records to disk, on the calling thread
+     */
+    public void flush()
+    {
+        forceSegments();
+        throwFlushFailure();
+    }
+
+    /**
+     * Stop accepting records and flush
+     */
+    @Override
+    public void close()
+    {
+        synchronized(this)
+        {
+            if(mClosed)
+                return;
+            mClosed = true;
+            notifyAll();
+        }
+        try
+        {
+            mFlusher.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void rollSegment()
+    {
+        mRetiredSegments.add(mSegment);
+        try
+        {
+            mSegment = mapSegment(++mSegmentNumber);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        requestFlush();
+    }
+
+    /**
+     * Wake the flusher. Called holding the lock.
+     */
+    private void requestFlush()
+    {
+        mUncommittedRecords = 0;
+        mFlushRequested = true;
+        notifyAll();
+    }
+
+    private void runFlusher()
+    {
+        while(true)
+        {
+            synchronized(this)
+            {
+                while(!mFlushRequested && !mClosed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        //only stopped by close()
+                    }
+                }
+                //close() does the final force
+                if(mClosed)
+                    return;
+                mFlushRequested = false;
+            }
+
+            try
+            {
+                forceSegments();
+            }
+            catch(RuntimeException e)
+            {
+                synchronized(this)
+                {
+                    if(mFlushFailure == null)
+                        mFlushFailure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Force the retired and current segments, without holding the lock while forcing so appends carry on
+     */
+    private void forceSegments()
+    {
+        List<MappedByteBuffer> segments;
+        synchronized(this)
+        {
+            segments = new ArrayList<>(mRetiredSegments);
+            mRetiredSegments.clear();
+            segments.add(mSegment);
+        }
+        for(MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    private synchronized void throwFlushFailure()
+    {
+        if(mFlushFailure != null)
+            throw new IllegalStateException("Background flush failed", mFlushFailure);
+    }
+
+    private MappedByteBuffer mapSegment(long segmentNumber) throws IOException
+    {
+        File file = new File(mDirectory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            //mapping remains valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+    }
+
+    //=====================================================//
+    // Recovery
+    //=====================================================//
+
+    /**
+     * Receives each record of a journal during {@link #replay(File, Listener)}
+     */
+    public interface Listener
+    {
+        /**
+         * @param machineId
+         * @param fromIndex from state index, -1 when starting
+         * @param toIndex to state index
+         * @param triggerIndex trigger index, -1 if not caused by a trigger
+         * @param timestampMillis
+         * @param data encoded state data, null if none
+         */
+        void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data);
+    }
+
+    /**
+     * Read every record in the passed journal directory, in the order they were appended. A partially written (i.e.
+     * from a crash) or corrupt record ends that segment, replay continues with the next.
+     *
+     * @param directory
+     * @param listener
+     * @throws IOException
+     */
+    public static void replay(File directory, Listener listener) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        for(File file : segmentFiles(directory))
+        {
+            MappedByteBuffer segment;
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            while(segment.remaining() >= 4)
+            {
+                int recordLength = segment.getInt();
+                if(recordLength == 0)
+                    break; //end of segment
+                if(recordLength < HEADER_SIZE || recordLength > segment.remaining())
+                    break; //torn record
+
+                int expectedCrc = segment.getInt();
+                byte[] body = new byte[recordLength - CRC_SIZE];
+                segment.get(body);
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if((int) crc.getValue() != expectedCrc)
+                    break; //torn or corrupt record
+
+                ByteBuffer record = ByteBuffer.wrap(body);
+                long machineId = record.getLong();
+                int fromIndex = readIndex(record);
+                int toIndex = readIndex(record);
+                int triggerIndex = readIndex(record);
+                long timestampMillis = record.getLong();
+                int dataLength = record.getInt();
+                byte[] data = null;
+                if(dataLength != NO_DATA)
+                {
+                    data = new byte[dataLength];
+                    record.get(data);
+                }
+                listener.onRecord(machineId, fromIndex, toIndex, triggerIndex, timestampMillis, data);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the latest state of every journaled machine. Engines are restored via
+     * {@link FsmEngine#restore(Object, Object)} so no actions are run and no observers notified.
+     *
+     * @param directory journal directory
+     * @param definition the definition the journal was written with
+     * @param codec codec the journal was written with, may be null if no records have data
+     * @return restored engines by machine id
+     * @throws IOException
+     */
+    public static <E, T> Map<Long, FsmEngine<E, T>> recover(File directory, FsmDefinition<E, T> definition, final DataCodec codec) throws IOException
+    {
+        definition.freeze();
+
+        //keep only the last record per machine
+        final Map<Long, Integer> lastStates = new HashMap<>();
+        final Map<Long, byte[]> lastData = new HashMap<>();
+        replay(directory, new Listener()
+        {
+            @Override
+            public void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data)
+            {
+                lastStates.put(machineId, toIndex);
+                if(data == null)
+                    lastData.remove(machineId);
+                else
+                    lastData.put(machineId, data);
+            }
+        });
+
+        Map<Long, FsmEngine<E, T>> engines = new HashMap<>();
+        for(Map.Entry<Long, Integer> lastState : lastStates.entrySet())
+        {
+            byte[] data = lastData.get(lastState.getKey());
+            if(data != null && codec == null)
+                throw new IllegalStateException("Journal has data but no DataCodec passed");
+
+            FsmEngine<E, T> engine = new FsmEngine<>(definition);
+            engine.restore(definition.cylinderAt(lastState.getValue()).stateEnum, data == null ? null : codec.decode(data));
+            engines.put(lastState.getKey(), engine);
+        }
+        return engines;
+    }
+
+    /**
+     * @return unsigned short index, -1 for {@link #NO_INDEX}
+     */
+    private static int readIndex(ByteBuffer record)
+    {
+        int index = record.getShort() & 0xFFFF;
+        return index == NO_INDEX ? -1 : index;
+    }
+
+    //=====================================================//
+    // Segment files
+    //=====================================================//
+
+    private static File[] segmentFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            return new File[0];
+
+        int count = 0;
+        for(File file : files)
+            if(file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX))
+                files[count++] = file;
+        File[] segments = Arrays.copyOf(files, count);
+        //zero padded numbers so name order is append order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long segmentNumber(File segment)
+    {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
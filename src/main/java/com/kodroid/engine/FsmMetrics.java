@@ -0,0 +1,278 @@
+package com.kodroid.engine;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional instrumentation for all {@link FsmEngine}s sharing a {@link FsmDefinition}, enabled per engine via
+ * {@link FsmEngine#setMetrics(FsmMetrics)}. Engines without metrics pay nothing beyond a null check.
+ *
+ * Records
+ *
+ * - per state: entry count, dwell time histogram and enter / exit action duration histograms
+ * - per trigger event: accepted and rejected counts and transition action duration histogram
+ *
+ * Histograms have fixed power of two nanosecond buckets, negative durations (e.g. from a misbehaving clock) are recorded
+ * as zero. All storage is preallocated in striped counters so recording never allocates. Stripes are picked by thread
+ * id, so contention between recording threads is reduced but not eliminated, as threads whose ids share a stripe
+ * still contend on the same counters. Reading sums across stripes and is therefore not atomic across counters.
+ *
+ * {@link #writePrometheus(Appendable)} exports a snapshot in the Prometheus text exposition format.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class FsmMetrics<E, T>
+{
+    /**
+     * Histogram bucket i counts durations in [2^(i-1), 2^i) nanos, bucket 0 counts zero durations. The last bucket is
+     * open ended (~4.5 mins and above).
+     */
+    static final int BUCKETS = 40;
+    /**
+     * Buckets followed by the sum of all recorded durations
+     */
+    private static final int HISTOGRAM_SLOTS = BUCKETS + 1;
+    private static final int MAX_STRIPES = 8;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final String mName;
+    private final int mStateCount;
+    /**
+     * Trigger events plus one slot for events with no Triggers defined at all
+     */
+    private final int mTriggerSlots;
+
+    //slot offsets within a stripe
+    private final int mEntriesOffset;
+    private final int mAcceptedOffset;
+    private final int mRejectedOffset;
+    private final int mDwellOffset;
+    private final int mEnterOffset;
+    private final int mExitOffset;
+    private final int mTransitionOffset;
+
+    private final int mStripeSize;
+    private final int mStripeMask;
+    private final AtomicLongArray mCounters;
+
+    /**
+     * @param definition definition of the engines this will record, will be frozen if not already
+     * @param name exported as the machine label, to distinguish multiple definitions
+     */
+    public FsmMetrics(FsmDefinition<E, T> definition, String name)
+    {
+        mDefinition = definition.freeze();
+        mName = name;
+        mStateCount = mDefinition.getCylinderIndexCount();
+        mTriggerSlots = mDefinition.getTriggerIndexCount() + 1;
+
+        mEntriesOffset = 0;
+        mAcceptedOffset = mEntriesOffset + mStateCount;
+        mRejectedOffset = mAcceptedOffset + mTriggerSlots;
+        mDwellOffset = mRejectedOffset + mTriggerSlots;
+        mEnterOffset = mDwellOffset + mStateCount * HISTOGRAM_SLOTS;
+        mExitOffset = mEnterOffset + mStateCount * HISTOGRAM_SLOTS;
+        mTransitionOffset = mExitOffset + mStateCount * HISTOGRAM_SLOTS;
+        //pad each stripe to a whole number of cache lines
+        mStripeSize = ((mTransitionOffset + mTriggerSlots * HISTOGRAM_SLOTS) + 7) & ~7;
+
+        int stripes = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+        mStripeMask = stripes - 1;
+        mCounters = new AtomicLongArray(mStripeSize * stripes);
+    }
+
+    //=====================================================//
+    // Recording (called by FsmEngine)
+    //=====================================================//
+
+    void recordEntry(FsmEngine.Cylinder<E, T> cylinder)
+    {
+        increment(mEntriesOffset + cylinder.index, 1);
+    }
+
+    void recordDwell(FsmEngine.Cylinder<E, T> cylinder, long nanos)
+    {
+        recordHistogram(mDwellOffset, cylinder.index, nanos);
+    }
+
+    void recordEnterAction(FsmEngine.Cylinder<E, T> cylinder, long nanos)
+    {
+        recordHistogram(mEnterOffset, cylinder.index, nanos);
+    }
+
+    void recordExitAction(FsmEngine.Cylinder<E, T> cylinder, long nanos)
+    {
+        recordHistogram(mExitOffset, cylinder.index, nanos);
+    }
+
+    void recordTransitionAction(T triggerEnum, long nanos)
+    {
+        recordHistogram(mTransitionOffset, triggerSlot(triggerEnum), nanos);
+    }
+
+    void recordTrigger(T triggerEnum, boolean accepted)
+    {
+        increment((accepted ? mAcceptedOffset : mRejectedOffset) + triggerSlot(triggerEnum), 1);
+    }
+
+    //=====================================================//
+    // Reading
+    //=====================================================//
+
+    /**
+     * @return the definition these metrics are for
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
+    }
+
+    /**
+     * @return number of times the passed state has been entered
+     */
+    public long getEntryCount(E state)
+    {
+        return sum(mEntriesOffset + requireCylinder(state).index);
+    }
+
+    /**
+     * @return number of times the passed trigger was accepted
+     */
+    public long getAcceptedCount(T triggerEnum)
+    {
+        return sum(mAcceptedOffset + triggerSlot(triggerEnum));
+    }
+
+    /**
+     * @return number of times the passed trigger was rejected
+     */
+    public long getRejectedCount(T triggerEnum)
+    {
+        return sum(mRejectedOffset + triggerSlot(triggerEnum));
+    }
+
+    /**
+     * @return dwell time histogram for the passed state, see {@link #BUCKETS} for bucket boundaries
+     */
+    public long[] getDwellHistogram(E state)
+    {
+        long[] histogram = new long[BUCKETS];
+        int base = mDwellOffset + requireCylinder(state).index * HISTOGRAM_SLOTS;
+        for(int bucket = 0; bucket < BUCKETS; bucket++)
+            histogram[bucket] = sum(base + bucket);
+        return histogram;
+    }
+
+    /**
+     * Write a snapshot of all metrics in the Prometheus text exposition format
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writePrometheus(Appendable out) throws IOException
+    {
+        out.append("# TYPE fsm_state_entries_total counter\n");
+        for(int i = 0; i < mStateCount; i++)
+            if(mDefinition.cylinderAt(i) != null)
+                writeSample(out, "fsm_state_entries_total", stateLabels(i), sum(mEntriesOffset + i));
+
+        out.append("# TYPE fsm_trigger_total counter\n");
+        for(int i = 0; i < mTriggerSlots; i++)
+        {
+            String labels = triggerLabels(i);
+            writeSample(out, "fsm_trigger_total", labels+",result=\"accepted\"", sum(mAcceptedOffset + i));
+            writeSample(out, "fsm_trigger_total", labels+",result=\"rejected\"", sum(mRejectedOffset + i));
+        }
+
+        out.append("# TYPE fsm_state_dwell_seconds histogram\n");
+        for(int i = 0; i < mStateCount; i++)
+            if(mDefinition.cylinderAt(i) != null)
+                writeHistogram(out, "fsm_state_dwell_seconds", stateLabels(i), mDwellOffset + i * HISTOGRAM_SLOTS);
+
+        out.append("# TYPE fsm_action_duration_seconds histogram\n");
+        for(int i = 0; i < mStateCount; i++)
+        {
+            if(mDefinition.cylinderAt(i) == null)
+                continue;
+            writeHistogram(out, "fsm_action_duration_seconds", stateLabels(i)+",action=\"enter\"", mEnterOffset + i * HISTOGRAM_SLOTS);
+            writeHistogram(out, "fsm_action_duration_seconds", stateLabels(i)+",action=\"exit\"", mExitOffset + i * HISTOGRAM_SLOTS);
+        }
+        for(int i = 0; i < mTriggerSlots; i++)
+            writeHistogram(out, "fsm_action_duration_seconds", triggerLabels(i)+",action=\"transition\"", mTransitionOffset + i * HISTOGRAM_SLOTS);
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private int triggerSlot(T triggerEnum)
+    {
+        int index = mDefinition.triggerIndexFor(triggerEnum);
+        return index < 0 ? mTriggerSlots - 1 : index;
+    }
+
+    private FsmEngine.Cylinder<E, T> requireCylinder(E state)
+    {
+        FsmEngine.Cylinder<E, T> cylinder = mDefinition.cylinderFor(state);
+        if(cylinder == null)
+            throw new NullPointerException(state+" does not exist in map!");
+        return cylinder;
+    }
+
+    private void recordHistogram(int offset, int index, long nanos)
+    {
+        long clamped = Math.max(0, nanos);
+        int base = offset + index * HISTOGRAM_SLOTS;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(clamped));
+        increment(base + bucket, 1);
+        increment(base + BUCKETS, clamped);
+    }
+
+    private void increment(int slot, long delta)
+    {
+        int stripe = (int) Thread.currentThread().getId() & mStripeMask;
+        mCounters.addAndGet(stripe * mStripeSize + slot, delta);
+    }
+
+    private long sum(int slot)
+    {
+        long sum = 0;
+        for(int stripeOffset = 0; stripeOffset < mCounters.length(); stripeOffset += mStripeSize)
+            sum += mCounters.get(stripeOffset + slot);
+        return sum;
+    }
+
+    private String stateLabels(int cylinderIndex)
+    {
+        return "machine=\""+mName+"\",state=\""+mDefinition.cylinderAt(cylinderIndex).stateEnum+"\"";
+    }
+
+    private String triggerLabels(int triggerSlot)
+    {
+        Object trigger = triggerSlot == mTriggerSlots - 1 ? "UNDEFINED" : mDefinition.triggerAt(triggerSlot);
+        return "machine=\""+mName+"\",trigger=\""+trigger+"\"";
+    }
+
+    private static void writeSample(Appendable out, String metric, String labels, Object value) throws IOException
+    {
+        out.append(metric).append('{').append(labels).append("} ").append(String.valueOf(value)).append('\n');
+    }
+
+    private void writeHistogram(Appendable out, String metric, String labels, int base) throws IOException
+    {
+        long cumulative = 0;
+        for(int bucket = 0; bucket < BUCKETS - 1; bucket++)
+        {
+            cumulative += sum(base + bucket);
+            //bucket upper bound is inclusive of 2^bucket - 1 nanos
+            double le = ((1L << bucket) - 1) / NANOS_PER_SECOND;
+            writeSample(out, metric+"_bucket", labels+",le=\""+le+"\"", cumulative);
+        }
+        cumulative += sum(base + BUCKETS - 1);
+        writeSample(out, metric+"_bucket", labels+",le=\"+Inf\"", cumulative);
+        writeSample(out, metric+"_sum", labels, sum(base + BUCKETS) / NANOS_PER_SECOND);
+        writeSample(out, metric+"_count", labels, cumulative);
+    }
+}
@@ -0,0 +1,368 @@
+package com.kodroid.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyed registry of a large, mostly idle population of machines sharing one {@link FsmDefinition}.
+ *
+ * Only the most recently used machines are held as live {@link FsmEngine}s. Once more than hotCapacity are live the
+ * least recently used is paged out: its state index and data (encoded with the passed {@link DataCodec}) are written
+ * to a memory-mapped {@link ColdStore} and the engine is dropped. A paged out machine is faulted back in on its next
+ * access via {@link FsmEngine#restore(Object, Object)}, so no actions are run and no observers notified. Per engine
+ * settings (observers, metrics, timing wheel etc) are not paged out, so should be applied via the passed
+ * {@link EngineConfigurer} which is called for every engine created or faulted in. State timeouts restart when faulted
+ * in.
+ *
+ * A machine whose data does not encode within maxColdDataBytes (or whose codec throws) cannot be paged out and stays
+ * live until its data changes, so the live count can exceed hotCapacity.
+ *
+ * Engines returned from {@link #get(long)} may be paged out by any later registry call, so should not be held onto.
+ * Paging out is deferred while a trigger is being dispatched, so actions may call back into the registry.
+ *
+ * The cold store is scratch storage and is discarded on {@link #close()}; use {@link FsmJournal} / {@link FsmSnapshot}
+ * for durability.
+ *
+ * Not thread safe. Shard machines across registries, e.g. one per {@link PartitionedFsmProcessor} partition, to scale.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class FsmRegistry<E, T> implements Closeable
+{
+    public static final int DEFAULT_MAX_COLD_DATA_BYTES = 64;
+
+    /**
+     * Applies per engine settings
+     */
+    public interface EngineConfigurer<E, T>
+    {
+        /**
+         * Called before the engine is started or restored
+         *
+         * @param key machine key
+         * @param engine
+         */
+        void configure(long key, FsmEngine<E, T> engine);
+    }
+
+    private final FsmDefinition<E, T> mDefinition;
+    private final int mHotCapacity;
+    private final DataCodec mCodec;
+    private final int mMaxColdDataBytes;
+    private final EngineConfigurer<E, T> mConfigurer;
+    /**
+     * Access ordered so iteration starts at the least recently used
+     */
+    private final LinkedHashMap<Long, FsmEngine<E, T>> mHot = new LinkedHashMap<>(16, 0.75f, true);
+    private final ColdStore mCold;
+    /**
+     * Depth of triggers being dispatched, nothing is paged out unless 0
+     */
+    private int mDispatchDepth;
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param hotCapacity max live engines
+     * @param directory directory for the cold store, created if needed. Can be shared by several registries.
+     * @param codec codec for state data, may be null if no state requires data
+     * @throws IOException
+     */
+    public FsmRegistry(FsmDefinition<E, T> definition, int hotCapacity, File directory, DataCodec codec) throws IOException
+    {
+        this(definition, hotCapacity, directory, codec, DEFAULT_MAX_COLD_DATA_BYTES, null);
+    }
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param hotCapacity max live engines
+     * @param directory directory for the cold store, created if needed. Can be shared by several registries.
+     * @param codec codec for state data, may be null if no state requires data
+     * @param maxColdDataBytes max encoded data length of a paged out machine
+     * @param configurer may be null
+     * @throws IOException
+     */
+    public FsmRegistry(FsmDefinition<E, T> definition, int hotCapacity, File directory, DataCodec codec, int maxColdDataBytes, EngineConfigurer<E, T> configurer) throws IOException
+    {
+        if(hotCapacity <= 0)
+            throw new IllegalArgumentException("hotCapacity must be positive");
+
+        mDefinition = definition.freeze();
+        if(codec == null)
+            for(int i = 0; i < mDefinition.getCylinderIndexCount(); i++)
+            {
+                FsmEngine.Cylinder<E, T> cylinder = mDefinition.cylinderAt(i);
+                if(cylinder != null && cylinder.requiredDataType != null)
+                    throw new IllegalArgumentException("A DataCodec is required as state "+cylinder.stateEnum+" requires data");
+            }
+        mHotCapacity = hotCapacity;
+        mCodec = codec;
+        mMaxColdDataBytes = maxColdDataBytes;
+        mConfigurer = configurer;
+        mCold = new ColdStore(directory, maxColdDataBytes);
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Create and start a new machine
+     *
+     * @param key machine key, must not already exist
+     * @param startingState
+     * @param optionalInputData can be null
+     * @return the started engine
+     */
+    public FsmEngine<E, T> start(long key, E startingState, Object optionalInputData)
+    {
+        if(contains(key))
+            throw new IllegalStateException("Machine "+key+" already exists");
+
+        FsmEngine<E, T> engine = newEngine(key);
+        mDispatchDepth++;
+        try
+        {
+            engine.start(startingState, optionalInputData);
+        }
+        finally
+        {
+            mDispatchDepth--;
+        }
+        mHot.put(key, engine);
+        pageOutIfNeeded(key);
+        return engine;
+    }
+
+    /**
+     * @param key machine key
+     * @return the live engine for the passed key, faulting it in if paged out, or null if no such machine
+     */
+    public FsmEngine<E, T> get(long key)
+    {
+        FsmEngine<E, T> engine = mHot.get(key);
+        if(engine != null)
+            return engine;
+
+        if(mCold.find(key) < 0)
+            return null;
+
+        engine = newEngine(key);
+        //the configurer may have called back into the registry, moving or faulting in this machine
+        FsmEngine<E, T> faulted = mHot.get(key);
+        if(faulted != null)
+            return faulted;
+        long slot = mCold.find(key);
+        if(slot < 0)
+            return null;
+
+        //only drop the cold copy once the machine is live, so a failing codec or restore loses nothing
+        E state = mDefinition.cylinderAt(mCold.stateIndexAt(slot)).stateEnum;
+        byte[] data = mCold.dataAt(slot);
+        engine.restore(state, data == null ? null : mCodec.decode(data));
+        mHot.put(key, engine);
+        mCold.removeAt(slot);
+        pageOutIfNeeded(key);
+        return engine;
+    }
+
+    /**
+     * {@link FsmEngine#trigger(Object, Object)} the passed machine, faulting it in if paged out
+     *
+     * @param key machine key, must exist
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     */
+    public void trigger(long key, T triggerEnum, Object optionalInputData)
+    {
+        FsmEngine<E, T> engine = require(key);
+        mDispatchDepth++;
+        try
+        {
+            engine.trigger(triggerEnum, optionalInputData);
+        }
+        finally
+        {
+            mDispatchDepth--;
+        }
+        pageOutIfNeeded(key);
+    }
+
+    /**
+     * {@link FsmEngine#tryTrigger(Object, Object)} the passed machine, faulting it in if paged out
+     *
+     * @param key machine key, must exist
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     * @return see {@link FsmEngine#tryTrigger(Object, Object)}
+     */
+    public DispatchResult tryTrigger(long key, T triggerEnum, Object optionalInputData)
+    {
+        FsmEngine<E, T> engine = require(key);
+        DispatchResult result;
+        mDispatchDepth++;
+        try
+        {
+            result = engine.tryTrigger(triggerEnum, optionalInputData);
+        }
+        finally
+        {
+            mDispatchDepth--;
+        }
+        pageOutIfNeeded(key);
+        return result;
+    }
+
+    /**
+     * @param key machine key
+     * @return true if the machine exists, live or paged out
+     */
+    public boolean contains(long key)
+    {
+        return mHot.containsKey(key) || mCold.find(key) >= 0;
+    }
+
+    /**
+     * Drop the passed machine. No actions are run.
+     *
+     * @param key machine key
+     * @return true if the machine existed
+     */
+    public boolean remove(long key)
+    {
+        FsmEngine<E, T> engine = mHot.remove(key);
+        if(engine != null)
+        {
+            engine.reset();
+            return true;
+        }
+        long slot = mCold.find(key);
+        if(slot < 0)
+            return false;
+        mCold.removeAt(slot);
+        return true;
+    }
+
+    /**
+     * @return number of live engines
+     */
+    public int getHotCount()
+    {
+        return mHot.size();
+    }
+
+    /**
+     * @return number of paged out machines
+     */
+    public long getColdCount()
+    {
+        return mCold.size();
+    }
+
+    /**
+     * @return the definition shared by all machines of this registry
+     */
+    public FsmDefinition<E, T> getDefinition()
+    {
+        return mDefinition;
+    }
+
+    /**
+     * Drop every machine and delete the cold store. Live engines are reset, cancelling any armed timeout.
+     */
+    @Override
+    public void close()
+    {
+        for(FsmEngine<E, T> engine : mHot.values())
+            engine.reset();
+        mHot.clear();
+        mCold.close();
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private FsmEngine<E, T> newEngine(long key)
+    {
+        FsmEngine<E, T> engine = new FsmEngine<>(mDefinition);
+        if(mConfigurer != null)
+            mConfigurer.configure(key, engine);
+        return engine;
+    }
+
+    private FsmEngine<E, T> require(long key)
+    {
+        FsmEngine<E, T> engine = get(key);
+        if(engine == null)
+            throw new IllegalArgumentException("Machine "+key+" does not exist");
+        return engine;
+    }
+
+    /**
+     * Page out least recently used engines until within capacity. Engines which cannot be encoded are kept live and
+     * marked most recently used, so they are not re-encoded on every call.
+     *
+     * @param retainedKey machine being accessed, never paged out so the engine returned to the caller stays live
+     */
+    private void pageOutIfNeeded(long retainedKey)
+    {
+        if(mDispatchDepth > 0 || mHot.size() <= mHotCapacity)
+            return;
+
+        List<Long> unencodable = null;
+        Iterator<Map.Entry<Long, FsmEngine<E, T>>> eldest = mHot.entrySet().iterator();
+        while(mHot.size() > mHotCapacity && eldest.hasNext())
+        {
+            Map.Entry<Long, FsmEngine<E, T>> entry = eldest.next();
+            if(entry.getKey() == retainedKey)
+                continue;
+            FsmEngine<E, T> engine = entry.getValue();
+            byte[] encoded = null;
+            Object data = engine.getCurrentCylindersData();
+            if(data != null)
+            {
+                encoded = encode(data);
+                if(encoded == null)
+                {
+                    if(unencodable == null)
+                        unencodable = new ArrayList<>();
+                    unencodable.add(entry.getKey());
+                    continue;
+                }
+            }
+            mCold.put(entry.getKey(), engine.getCurrentCylinder().index, encoded);
+            eldest.remove();
+            //cancels any armed timeout
+            engine.reset();
+        }
+
+        if(unencodable != null)
+            for(Long key : unencodable)
+                mHot.get(key);
+    }
+
+    /**
+     * @param data non-null state data
+     * @return encoded data, or null if it cannot be encoded within {@link #mMaxColdDataBytes}
+     */
+    private byte[] encode(Object data)
+    {
+        byte[] encoded;
+        try
+        {
+            encoded = mCodec.encode(data);
+        }
+        catch(RuntimeException e)
+        {
+            return null;
+        }
+        return encoded.length <= mMaxColdDataBytes ? encoded : null;
+    }
+}
@@ -0,0 +1,325 @@
+package com.kodroid.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary snapshot of the current state of many machines sharing a {@link FsmDefinition}, for restarting
+ * without replaying a {@link FsmJournal}.
+ *
+ * The format is columnar:
+ *
+ * <pre>
+ * int    magic
+ * int    version
+ * int    state index count of the definition, checked on restore
+ * int    machine count
+ * byte   bytes per machine (1 or 2)
+ * byte[] state column, {@link FsmEngine.Cylinder#index} + 1 per machine, 0 if not started
+ * then for each machine with state data, in machine order
+ *   int    machine index
+ *   int    data length
+ *   byte[] data, as encoded by the passed {@link DataCodec}
+ * int    -1
+ * </pre>
+ *
+ * so machines without data cost 1 byte each for definitions with up to 255 states and 2 bytes for up to 65535.
+ * {@link FsmBulkEngine} columns are written and read as is, straight from / into off-heap storage where used.
+ *
+ * Restoring never runs actions or notifies observers.
+ */
+public final class FsmSnapshot
+{
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x46534D53; //FSMS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 1;
+    private static final int NO_MORE_DATA = -1;
+
+    private FsmSnapshot()
+    {
+    }
+
+    //=====================================================//
+    // FsmEngine populations
+    //=====================================================//
+
+    /**
+     * Write the current state and data of the passed engines
+     *
+     * @param out
+     * @param definition definition shared by all the passed engines
+     * @param engines machine index is the position in this list
+     * @param codec codec for state data, may be null if no state requires data
+     * @throws IOException
+     */
+    public static <E, T> void write(WritableByteChannel out, FsmDefinition<E, T> definition, List<FsmEngine<E, T>> engines, DataCodec codec) throws IOException
+    {
+        int bytesPerMachine = FsmBulkEngine.bytesPerMachine(definition.freeze());
+        writeHeader(out, definition, engines.size(), bytesPerMachine);
+
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        for(FsmEngine<E, T> engine : engines)
+        {
+            if(engine.getDefinition() != definition)
+                throw new IllegalArgumentException("All engines must use the passed definition");
+
+            if(chunk.remaining() < bytesPerMachine)
+                flushChunk(out, chunk);
+            FsmEngine.Cylinder<E, T> cylinder = engine.getCurrentCylinder();
+            int value = cylinder == null ? 0 : cylinder.index + 1;
+            if(bytesPerMachine == 1)
+                chunk.put((byte) value);
+            else
+                chunk.putShort((short) value);
+        }
+        flushChunk(out, chunk);
+
+        for(int machineIndex = 0, count = engines.size(); machineIndex < count; machineIndex++)
+        {
+            Object data = engines.get(machineIndex).getCurrentCylindersData();
+            if(data == null)
+                continue;
+            if(codec == null)
+                throw new IllegalStateException("No DataCodec passed to encode "+data.getClass().getName());
+
+            byte[] bytes = codec.encode(data);
+            if(chunk.remaining() < 8 + bytes.length)
+                flushChunk(out, chunk);
+            chunk.putInt(machineIndex);
+            chunk.putInt(bytes.length);
+            if(chunk.remaining() >= bytes.length)
+            {
+                chunk.put(bytes);
+            }
+            else
+            {
+                flushChunk(out, chunk);
+                writeFully(out, ByteBuffer.wrap(bytes));
+            }
+        }
+        if(chunk.remaining() < 4)
+            flushChunk(out, chunk);
+        chunk.putInt(NO_MORE_DATA);
+        flushChunk(out, chunk);
+    }
+
+    /**
+     * Rebuild engines from a snapshot written by {@link #write(WritableByteChannel, FsmDefinition, List, DataCodec)}.
+     * Engines are restored via {@link FsmEngine#restore(Object, Object)}, machines that were not started are returned
+     * not started.
+     *
+     * Data records are read a field at a time so for snapshots with a lot of data pass a buffered channel.
+     *
+     * @param in
+     * @param definition the definition the snapshot was written with
+     * @param codec codec the snapshot was written with, may be null if no machines have data
+     * @return engines in machine index order
+     * @throws IOException if the snapshot is malformed or was written with a different definition
+     */
+    public static <E, T> List<FsmEngine<E, T>> read(ReadableByteChannel in, FsmDefinition<E, T> definition, DataCodec codec) throws IOException
+    {
+        int bytesPerMachine = FsmBulkEngine.bytesPerMachine(definition.freeze());
+        int machineCount = readHeader(in, definition, bytesPerMachine);
+
+        //definitions small enough for a byte column are read with a byte store, otherwise a short store
+        FsmBulkEngine.StateStore states = bytesPerMachine == 1
+                ? new FsmBulkEngine.ByteArrayStore(machineCount)
+                : new FsmBulkEngine.ShortArrayStore(machineCount);
+        states.readFrom(in);
+
+        ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        int nextDataIndex = readInt(in, intBuffer);
+        List<FsmEngine<E, T>> engines = new ArrayList<>(machineCount);
+        for(int machineIndex = 0; machineIndex < machineCount; machineIndex++)
+        {
+            Object data = null;
+            if(nextDataIndex == machineIndex)
+            {
+                if(codec == null)
+                    throw new IllegalStateException("Snapshot has data but no DataCodec passed");
+                data = codec.decode(readData(in, readInt(in, intBuffer)));
+                nextDataIndex = readInt(in, intBuffer);
+            }
+
+            FsmEngine<E, T> engine = new FsmEngine<>(definition);
+            int value = states.get(machineIndex);
+            if(value != 0)
+                engine.restore(requireCylinder(definition, value).stateEnum, data);
+            engines.add(engine);
+        }
+        if(nextDataIndex != NO_MORE_DATA)
+            throw new IOException("Malformed snapshot, unexpected data for machine "+nextDataIndex);
+        return engines;
+    }
+
+    //=====================================================//
+    // FsmBulkEngine
+    //=====================================================//
+
+    /**
+     * Write the state column of the passed engine. As {@link FsmBulkEngine} holds no state data this is only the
+     * column.
+     *
+     * @param out
+     * @param engine
+     * @throws IOException
+     */
+    public static void write(WritableByteChannel out, FsmBulkEngine<?, ?> engine) throws IOException
+    {
+        FsmBulkEngine.StateStore states = engine.getStates();
+        writeHeader(out, engine.getDefinition(), states.size(), states.bytesPerMachine());
+        states.writeTo(out);
+
+        ByteBuffer end = ByteBuffer.allocate(4);
+        end.putInt(NO_MORE_DATA).flip();
+        writeFully(out, end);
+    }
+
+    /**
+     * Overwrite the states of all machines in the passed engine with those from a snapshot written by
+     * {@link #write(WritableByteChannel, FsmBulkEngine)}
+     *
+     * @param in
+     * @param engine must have the same definition and machine count as the snapshot
+     * @throws IOException if the snapshot is malformed or does not match the passed engine
+     */
+    public static void read(ReadableByteChannel in, FsmBulkEngine<?, ?> engine) throws IOException
+    {
+        FsmBulkEngine.StateStore states = engine.getStates();
+        int machineCount = readHeader(in, engine.getDefinition(), states.bytesPerMachine());
+        if(machineCount != states.size())
+            throw new IOException("Snapshot has "+machineCount+" machines, engine has "+states.size());
+        states.readFrom(in);
+
+        for(int machineId = 0; machineId < machineCount; machineId++)
+        {
+            int value = states.get(machineId);
+            if(value != 0)
+                requireCylinder(engine.getDefinition(), value);
+        }
+        if(readInt(in, ByteBuffer.allocate(4)) != NO_MORE_DATA)
+            throw new IOException("Malformed snapshot, bulk snapshots have no data");
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private static void writeHeader(WritableByteChannel out, FsmDefinition<?, ?> definition, int machineCount, int bytesPerMachine) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(definition.getCylinderIndexCount());
+        header.putInt(machineCount);
+        header.put((byte) bytesPerMachine);
+        header.flip();
+        writeFully(out, header);
+    }
+
+    /**
+     * @return machine count
+     */
+    private static int readHeader(ReadableByteChannel in, FsmDefinition<?, ?> definition, int bytesPerMachine) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(in, header);
+        header.flip();
+        if(header.getInt() != MAGIC)
+            throw new IOException("Not a snapshot");
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported snapshot version "+version);
+        if(header.getInt() != definition.getCylinderIndexCount())
+            throw new IOException("Snapshot was written with a different definition");
+        int machineCount = header.getInt();
+        if(header.get() != bytesPerMachine)
+            throw new IOException("Snapshot was written with a different definition");
+        if(machineCount < 0)
+            throw new IOException("Malformed snapshot, negative machine count "+machineCount);
+        checkRemaining(in, (long) machineCount * bytesPerMachine);
+        return machineCount;
+    }
+
+    private static <E, T> FsmEngine.Cylinder<E, T> requireCylinder(FsmDefinition<E, T> definition, int value) throws IOException
+    {
+        FsmEngine.Cylinder<E, T> cylinder = value <= definition.getCylinderIndexCount() ? definition.cylinderAt(value - 1) : null;
+        if(cylinder == null)
+            throw new IOException("Snapshot was written with a different definition, no state for index "+(value - 1));
+        return cylinder;
+    }
+
+    /**
+     * Read a data record of the passed length, growing the buffer as bytes arrive so a corrupt length fails with an
+     * {@link IOException} rather than allocating it up front
+     */
+    private static byte[] readData(ReadableByteChannel in, int length) throws IOException
+    {
+        if(length < 0)
+            throw new IOException("Malformed snapshot, negative data length "+length);
+        checkRemaining(in, length);
+
+        ByteBuffer bytes = ByteBuffer.allocate(Math.min(length, CHUNK_SIZE));
+        while(true)
+        {
+            readFully(in, bytes);
+            if(bytes.capacity() == length)
+                return bytes.array();
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(length, 2L * bytes.capacity()));
+            bytes.flip();
+            grown.put(bytes);
+            bytes = grown;
+        }
+    }
+
+    /**
+     * Fail fast if the passed channel knows its size and has less than the passed number of bytes left
+     */
+    private static void checkRemaining(ReadableByteChannel in, long length) throws IOException
+    {
+        if(!(in instanceof SeekableByteChannel))
+            return;
+        SeekableByteChannel seekable = (SeekableByteChannel) in;
+        long remaining = seekable.size() - seekable.position();
+        if(length > remaining)
+            throw new IOException("Malformed snapshot, "+length+" bytes expected but only "+remaining+" remain");
+    }
+
+    private static int readInt(ReadableByteChannel in, ByteBuffer intBuffer) throws IOException
+    {
+        intBuffer.clear();
+        readFully(in, intBuffer);
+        return intBuffer.getInt(0);
+    }
+
+    private static void flushChunk(WritableByteChannel out, ByteBuffer chunk) throws IOException
+    {
+        chunk.flip();
+        writeFully(out, chunk);
+        chunk.clear();
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    /**
+     * Fill the remaining space of the passed buffer
+     */
+    static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            if(in.read(buffer) < 0)
+                throw new EOFException("Truncated snapshot");
+    }
+}
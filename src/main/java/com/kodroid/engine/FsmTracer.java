@@ -0,0 +1,157 @@
+package com.kodroid.engine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Low overhead event tracing for {@link FsmEngine}s, enabled per engine via {@link FsmEngine#setTracer(FsmTracer)}.
+ *
+ * Override the callbacks of the events to record, e.g. committing a Java Flight Recorder event or writing to a
+ * tracing system, so machine behaviour can be correlated with GC pauses / lock contention. Each {@link EventType} can
+ * be disabled and given a duration threshold (like JFR event settings) so only slow events reach the callbacks:
+ * events are filtered before any callback is made, so a disabled or below threshold event costs a branch.
+ *
+ * Callbacks run synchronously on the transitioning thread and must not call back into the engine. One tracer can be
+ * shared by any number of engines (and threads) if its callbacks are thread safe. Configure before attaching.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public abstract class FsmTracer<E, T>
+{
+    public enum EventType
+    {
+        /**
+         * A state was entered. Instant, ignores thresholds.
+         */
+        STATE_ENTERED,
+        /**
+         * A state was exited. Threshold applies to the time spent in the state.
+         */
+        STATE_EXITED,
+        /**
+         * A trigger was rejected. Instant, ignores thresholds.
+         */
+        TRIGGER_REJECTED,
+        /**
+         * An enter / exit / transition action ran. Threshold applies to its duration.
+         */
+        ACTION
+    }
+
+    public enum ActionType
+    {
+        ENTER, EXIT, TRANSITION
+    }
+
+    private final boolean[] mEnabled = new boolean[EventType.values().length];
+    private final long[] mThresholdNanos = new long[EventType.values().length];
+
+    /**
+     * All event types start enabled with no threshold
+     */
+    protected FsmTracer()
+    {
+        for(int i = 0; i < mEnabled.length; i++)
+            mEnabled[i] = true;
+    }
+
+    //=====================================================//
+    // Configuration
+    //=====================================================//
+
+    /**
+     * @param type
+     * @param enabled false to never report events of the passed type
+     * @return this
+     */
+    public FsmTracer<E, T> setEnabled(EventType type, boolean enabled)
+    {
+        mEnabled[type.ordinal()] = enabled;
+        return this;
+    }
+
+    /**
+     * @param type {@link EventType#STATE_EXITED} or {@link EventType#ACTION}
+     * @param threshold events shorter than this are not reported
+     * @param unit
+     * @return this
+     */
+    public FsmTracer<E, T> setThreshold(EventType type, long threshold, TimeUnit unit)
+    {
+        mThresholdNanos[type.ordinal()] = unit.toNanos(threshold);
+        return this;
+    }
+
+    //=====================================================//
+    // Callbacks
+    //=====================================================//
+
+    /**
+     * @param state state entered
+     * @param previousState state left, null when starting
+     * @param triggerEnum trigger causing the transition, null if caused by {@link FsmEngine#nextState(Object, Object)}
+     */
+    protected void stateEntered(E state, E previousState, T triggerEnum)
+    {
+    }
+
+    /**
+     * @param state state exited
+     * @param dwellNanos time spent in the state
+     */
+    protected void stateExited(E state, long dwellNanos)
+    {
+    }
+
+    /**
+     * @param state state the trigger was received in
+     * @param triggerEnum
+     * @param reason why the trigger was rejected
+     */
+    protected void triggerRejected(E state, T triggerEnum, DispatchResult reason)
+    {
+    }
+
+    /**
+     * @param type
+     * @param state state entered / exited, or the state the transition action ran in
+     * @param triggerEnum trigger being handled, null if caused by {@link FsmEngine#nextState(Object, Object)}
+     * @param durationNanos time taken, including that of parent state actions run alongside
+     */
+    protected void actionRun(ActionType type, E state, T triggerEnum, long durationNanos)
+    {
+    }
+
+    //=====================================================//
+    // Recording (called by FsmEngine)
+    //=====================================================//
+
+    void onStateEntered(E state, E previousState, T triggerEnum)
+    {
+        if(mEnabled[EventType.STATE_ENTERED.ordinal()])
+            stateEntered(state, previousState, triggerEnum);
+    }
+
+    void onStateExited(E state, long dwellNanos)
+    {
+        if(isReported(EventType.STATE_EXITED, dwellNanos))
+            stateExited(state, dwellNanos);
+    }
+
+    void onTriggerRejected(E state, T triggerEnum, DispatchResult reason)
+    {
+        if(mEnabled[EventType.TRIGGER_REJECTED.ordinal()])
+            triggerRejected(state, triggerEnum, reason);
+    }
+
+    void onActionRun(ActionType type, E state, T triggerEnum, long durationNanos)
+    {
+        if(isReported(EventType.ACTION, durationNanos))
+            actionRun(type, state, triggerEnum, durationNanos);
+    }
+
+    private boolean isReported(EventType type, long durationNanos)
+    {
+        return mEnabled[type.ordinal()] && durationNanos >= mThresholdNanos[type.ordinal()];
+    }
+}
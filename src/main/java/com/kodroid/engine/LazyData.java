@@ -0,0 +1,69 @@
+package com.kodroid.engine;
+
+/**
+ * Input data passed via a {@link DataSupplier}, flowing through an engine in place of the data itself.
+ *
+ * Its declared type stands in for the data when validating against required data types, so the supplier is only
+ * called once something reads the data: an {@link FsmEngine.Action} calling its getters, a {@link TransitionAction}
+ * or {@link TriggerGuard} being invoked, an observer being notified or the data being journaled / snapshotted. The
+ * result is memoized.
+ *
+ * Only {@link FsmEngine.Action}s are passed it as is. Observers and TransitionActions take plain data, so they are
+ * passed the resolved value whenever they are called, even if they never read it.
+ *
+ * Not thread safe.
+ */
+final class LazyData
+{
+    final Class<?> dataType;
+    private DataSupplier<?> mSupplier;
+    private Object mValue;
+
+    /**
+     * @param dataType type the supplier returns an instance of
+     * @param supplier
+     */
+    LazyData(Class<?> dataType, DataSupplier<?> supplier)
+    {
+        if(dataType == null || supplier == null)
+            throw new NullPointerException("dataType and supplier are required");
+        this.dataType = dataType;
+        mSupplier = supplier;
+    }
+
+    /**
+     * @param data input data, possibly lazy
+     * @return the passed data, or the value of the passed lazy data
+     */
+    static Object resolve(Object data)
+    {
+        return data instanceof LazyData ? ((LazyData) data).get() : data;
+    }
+
+    /**
+     * @param data input data, possibly lazy, not null
+     * @return the class of the passed data, or the declared type of the passed lazy data
+     */
+    static Class<?> typeOf(Object data)
+    {
+        return data instanceof LazyData ? ((LazyData) data).dataType : data.getClass();
+    }
+
+    /**
+     * @return supplied value, calling the supplier on first access
+     * @throws IllegalStateException if the supplier breaks its declared type
+     */
+    Object get()
+    {
+        if(mSupplier != null)
+        {
+            Object value = mSupplier.get();
+            if(!dataType.isInstance(value))
+                throw new IllegalStateException("DataSupplier declared "+dataType.getName()+" but returned "+(value == null ? "null" : value.getClass().getName()));
+            mValue = value;
+            //release the supplier and anything it captured
+            mSupplier = null;
+        }
+        return mValue;
+    }
+}
@@ -0,0 +1,286 @@
+package com.kodroid.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Actor style wrapper around a {@link FsmEngine}.
+ *
+ * Calls never run the engine on the calling thread. Instead they are appended to a multi-producer single-consumer
+ * mailbox and a {@link MailboxFuture} is returned which completes with the resulting state (or the exception the engine
+ * threw). Non-blocking callers can register a listener on it via {@link MailboxFuture#addListener(Runnable)} rather
+ * than wait on {@link Future#get()}. The mailbox is drained on the passed {@link Executor}, at most one drain at a time, so the engine and all its
+ * actions only ever run on one thread at a time and calls are processed strictly in the order they were enqueued. Any
+ * executor works, e.g. a small fork join pool shared by many machines.
+ *
+ * Actions may call back into this class (the call is enqueued behind the current one) but should not block on the
+ * returned future as that would deadlock the mailbox.
+ *
+ * If the executor rejects a drain (e.g. it has been shut down) every call queued at that point fails with the
+ * {@link RejectedExecutionException} and the mailbox is left free to be scheduled again.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class MailboxFsmEngine<E, T>
+{
+    /**
+     * Max calls processed per drain before the drain yields its executor thread to other machines
+     */
+    private static final int DRAIN_BATCH_SIZE = 64;
+
+    private final FsmEngine<E, T> mEngine;
+    private final Executor mExecutor;
+    private final Queue<MailboxFuture<E>> mMailbox = new ConcurrentLinkedQueue<>();
+    /**
+     * True while a drain is scheduled or running
+     */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mDrain = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * @param definition shared definition, will be frozen if not already
+     * @param executor executor the mailbox is drained on
+     */
+    public MailboxFsmEngine(FsmDefinition<E, T> definition, Executor executor)
+    {
+        mEngine = new FsmEngine<>(definition);
+        mExecutor = executor;
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Enqueue {@link FsmEngine#start(Object, Object)}
+     *
+     * @return future completing with the starting state
+     */
+    public MailboxFuture<E> start(final E startingState, final Object optionalInputData)
+    {
+        return enqueue(new Callable<E>()
+        {
+            @Override
+            public E call()
+            {
+                mEngine.start(startingState, optionalInputData);
+                return mEngine.getCurrentState();
+            }
+        });
+    }
+
+    /**
+     * Enqueue {@link FsmEngine#nextState(Object, Object)}
+     *
+     * @return future completing with the resulting state
+     */
+    public MailboxFuture<E> nextState(final E state, final Object optionalInputData)
+    {
+        return enqueue(new Callable<E>()
+        {
+            @Override
+            public E call()
+            {
+                mEngine.nextState(state, optionalInputData);
+                return mEngine.getCurrentState();
+            }
+        });
+    }
+
+    /**
+     * Enqueue {@link FsmEngine#trigger(Object, Object)}
+     *
+     * @return future completing with the resulting state
+     */
+    public MailboxFuture<E> trigger(final T triggerEnum, final Object optionalInputData)
+    {
+        return enqueue(new Callable<E>()
+        {
+            @Override
+            public E call()
+            {
+                mEngine.trigger(triggerEnum, optionalInputData);
+                return mEngine.getCurrentState();
+            }
+        });
+    }
+
+    /**
+     * Enqueue {@link FsmEngine#addObserver(FsmEngine.Observer)}. The observer will be notified on the mailbox thread.
+     *
+     * @return future completing with the current state
+     */
+    public MailboxFuture<E> addObserver(final FsmEngine.Observer<E> observer)
+    {
+        return enqueue(new Callable<E>()
+        {
+            @Override
+            public E call()
+            {
+                mEngine.addObserver(observer);
+                return mEngine.getCurrentState();
+            }
+        });
+    }
+
+    /**
+     * Enqueue {@link FsmEngine#removeObserver(FsmEngine.Observer)}
+     *
+     * @return future completing with the current state
+     */
+    public MailboxFuture<E> removeObserver(final FsmEngine.Observer<E> observer)
+    {
+        return enqueue(new Callable<E>()
+        {
+            @Override
+            public E call()
+            {
+                mEngine.removeObserver(observer);
+                return mEngine.getCurrentState();
+            }
+        });
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private MailboxFuture<E> enqueue(Callable<E> call)
+    {
+        MailboxFuture<E> task = new MailboxFuture<>(call);
+        mMailbox.offer(task);
+        scheduleDrain();
+        return task;
+    }
+
+    private void scheduleDrain()
+    {
+        if(!mScheduled.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            mExecutor.execute(mDrain);
+        }
+        catch(RejectedExecutionException e)
+        {
+            //fail what is queued while still marked scheduled so no other drain runs them meanwhile
+            MailboxFuture<E> task;
+            while((task = mMailbox.poll()) != null)
+                task.fail(e);
+            mScheduled.set(false);
+
+            //a producer may have enqueued after the last poll but seen mScheduled still set
+            if(!mMailbox.isEmpty())
+                scheduleDrain();
+        }
+    }
+
+    private void drain()
+    {
+        MailboxFuture<E> task;
+        int processed = 0;
+        while(processed++ < DRAIN_BATCH_SIZE && (task = mMailbox.poll()) != null)
+            task.run(); //exceptions are captured by the task
+
+        mScheduled.set(false);
+
+        //a producer may have enqueued after the last poll but seen mScheduled still set
+        if(!mMailbox.isEmpty())
+            scheduleDrain();
+    }
+
+    //=====================================================//
+    // MailboxFuture class
+    //=====================================================//
+
+    /**
+     * {@link Future} of a call enqueued on a {@link MailboxFsmEngine}, completing with the resulting state. Stands in
+     * for a completion stage on Java 7: listeners are run once it completes, so callers need not block on
+     * {@link #get()}.
+     *
+     * @param <E> State enum type
+     */
+    public static final class MailboxFuture<E> extends FutureTask<E>
+    {
+        /**
+         * Null once done. Guarded by this.
+         */
+        private List<Runnable> mListeners = new ArrayList<>();
+
+        MailboxFuture(Callable<E> call)
+        {
+            super(call);
+        }
+
+        /**
+         * Run the passed listener once this completes, normally or not. Runs on the mailbox thread, or straight away
+         * on the calling thread if already complete, so should not block. Exceptions it throws are passed to the
+         * running threads uncaught exception handler.
+         *
+         * @param listener
+         */
+        public void addListener(Runnable listener)
+        {
+            synchronized(this)
+            {
+                if(mListeners != null)
+                {
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            runListener(listener);
+        }
+
+        @Override
+        protected void done()
+        {
+            List<Runnable> listeners;
+            synchronized(this)
+            {
+                listeners = mListeners;
+                mListeners = null;
+            }
+            for(Runnable listener : listeners)
+                runListener(listener);
+        }
+
+        void fail(Throwable e)
+        {
+            setException(e);
+        }
+
+        /**
+         * Isolate the listener, so it cannot break the mailbox drain it runs on
+         */
+        private static void runListener(Runnable listener)
+        {
+            try
+            {
+                listener.run();
+            }
+            catch(RuntimeException e)
+            {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
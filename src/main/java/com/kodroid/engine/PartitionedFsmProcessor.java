@@ -0,0 +1,377 @@
+package com.kodroid.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Drives a large keyed population of {@link FsmEngine}s from a stream of (machine key, trigger, data) events, in
+ * parallel.
+ *
+ * Events are sharded by key hash across a fixed number of partitions, each with its own bounded queue and worker
+ * thread. A worker exclusively owns the engines of its keys (created on first use via the passed
+ * {@link EngineFactory}), so engines are only ever touched by one thread, need no locking, and see the events for their
+ * key in submission order. Throughput scales with the number of partitions until producers saturate.
+ *
+ * {@link #submit(Object, Object, Object)} blocks when the target partition is full, pushing back on producers.
+ * {@link #offer(Object, Object, Object)} instead returns false. Once {@link #shutdown()} has been called both throw, and
+ * every event they queued before that is applied before the workers exit.
+ *
+ * Engines are kept for the lifetime of the processor, so memory grows with the number of distinct keys seen. Call
+ * {@link #evict(Object)} once a machine is finished with, e.g. from an enter action of its final state, to release it.
+ *
+ * Exceptions thrown while applying an event (including rejected triggers) are passed to the {@link ErrorHandler} on
+ * the worker thread, after which the worker carries on with the next event. Anything thrown by the handler itself is
+ * passed to the workers {@link Thread.UncaughtExceptionHandler} and the worker still carries on. An {@link Error}
+ * thrown while applying an event fails its partition: the worker exits, its queued events are dropped and
+ * submitting to it throws rather than blocking.
+ *
+ * @param <K> Machine key type
+ * @param <E> State enum type
+ * @param <T> Trigger events
+ */
+public class PartitionedFsmProcessor<K, E, T>
+{
+    /**
+     * Max events a worker takes from its queue at once
+     */
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    /**
+     * Creates the engine for a key the first time an event is received for it. Called on the owning worker thread.
+     */
+    public interface EngineFactory<K, E, T>
+    {
+        /**
+         * @param key
+         * @return started engine for the passed key
+         */
+        FsmEngine<E, T> newEngine(K key);
+    }
+
+    /**
+     * Receives failures to apply an event. Called on the owning worker thread.
+     */
+    public interface ErrorHandler<K, T>
+    {
+        void onError(K key, T triggerEnum, Object optionalInputData, RuntimeException error);
+    }
+
+    private final EngineFactory<K, E, T> mEngineFactory;
+    private final ErrorHandler<K, T> mErrorHandler;
+    private final Partition[] mPartitions;
+    /**
+     * Held shared while queueing events and exclusively by {@link #shutdown()}, so no event can be queued behind the
+     * shutdown marker
+     */
+    private final ReadWriteLock mShutdownLock = new ReentrantReadWriteLock();
+    private volatile boolean mShutdown;
+
+    /**
+     * @param partitions number of worker threads
+     * @param queueCapacity max events queued per partition
+     * @param engineFactory
+     * @param errorHandler
+     */
+    public PartitionedFsmProcessor(int partitions, int queueCapacity, EngineFactory<K, E, T> engineFactory, ErrorHandler<K, T> errorHandler)
+    {
+        this(partitions, queueCapacity, engineFactory, errorHandler, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param partitions number of worker threads
+     * @param queueCapacity max events queued per partition
+     * @param engineFactory
+     * @param errorHandler
+     * @param threadFactory creates the worker threads
+     */
+    public PartitionedFsmProcessor(int partitions, int queueCapacity, EngineFactory<K, E, T> engineFactory, ErrorHandler<K, T> errorHandler, ThreadFactory threadFactory)
+    {
+        if(partitions <= 0)
+            throw new IllegalArgumentException("partitions must be positive");
+
+        mEngineFactory = engineFactory;
+        mErrorHandler = errorHandler;
+        mPartitions = newPartitionArray(partitions);
+        for(int i = 0; i < partitions; i++)
+            mPartitions[i] = new Partition(queueCapacity, threadFactory);
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Start the worker threads
+     *
+     * @return this
+     */
+    public PartitionedFsmProcessor<K, E, T> start()
+    {
+        for(Partition partition : mPartitions)
+            partition.thread.start();
+        return this;
+    }
+
+    /**
+     * Queue an event for the passed machine, blocking while its partition is full
+     *
+     * @param key machine key
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     * @throws InterruptedException
+     */
+    public void submit(K key, T triggerEnum, Object optionalInputData) throws InterruptedException
+    {
+        put(new Event<>(key, triggerEnum, optionalInputData, false));
+    }
+
+    /**
+     * Queue an event for the passed machine if its partition has space
+     *
+     * @param key machine key
+     * @param triggerEnum
+     * @param optionalInputData can be null
+     * @return false if the partition was full and the event was not queued
+     */
+    public boolean offer(K key, T triggerEnum, Object optionalInputData)
+    {
+        mShutdownLock.readLock().lock();
+        try
+        {
+            checkNotShutdown();
+            Partition partition = partitionFor(key);
+            partition.checkNotFailed();
+            return partition.queue.offer(new Event<>(key, triggerEnum, optionalInputData, false));
+        }
+        finally
+        {
+            mShutdownLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queue the removal of the engine for the passed machine, blocking while its partition is full. Events queued for
+     * the key before this are applied first, any queued after it are applied to a new engine from the
+     * {@link EngineFactory}.
+     *
+     * @param key machine key
+     * @throws InterruptedException
+     */
+    public void evict(K key) throws InterruptedException
+    {
+        put(new Event<K, T>(key, null, null, true));
+    }
+
+    /**
+     * Stop accepting events. Waits for producers already queueing an event to finish, after which workers exit once
+     * they have applied every event queued. Failed partitions are skipped.
+     *
+     * @throws InterruptedException if interrupted while waiting for space to queue the shutdown
+     */
+    public void shutdown() throws InterruptedException
+    {
+        mShutdown = true;
+        mShutdownLock.writeLock().lockInterruptibly();
+        try
+        {
+            for(Partition partition : mPartitions)
+                if(partition.failure == null)
+                    partition.queue.put(Event.SHUTDOWN);
+        }
+        finally
+        {
+            mShutdownLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param timeout
+     * @param unit
+     * @return true if all workers have exited
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Partition partition : mPartitions)
+        {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(remainingMillis <= 0 && partition.thread.isAlive())
+                return false;
+            partition.thread.join(Math.max(1, remainingMillis));
+            if(partition.thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of partitions / worker threads
+     */
+    public int getPartitionCount()
+    {
+        return mPartitions.length;
+    }
+
+    //=====================================================//
+    // Private interface
+    //=====================================================//
+
+    private void put(Event<K, T> event) throws InterruptedException
+    {
+        mShutdownLock.readLock().lockInterruptibly();
+        try
+        {
+            checkNotShutdown();
+            Partition partition = partitionFor(event.key);
+            partition.checkNotFailed();
+            partition.queue.put(event);
+        }
+        finally
+        {
+            mShutdownLock.readLock().unlock();
+        }
+    }
+
+    private void checkNotShutdown()
+    {
+        if(mShutdown)
+            throw new IllegalStateException("Shut down!");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Partition[] newPartitionArray(int length)
+    {
+        return (Partition[]) new PartitionedFsmProcessor<?, ?, ?>.Partition[length];
+    }
+
+    private Partition partitionFor(K key)
+    {
+        int hash = key.hashCode();
+        //spread high bits as keys often differ only there
+        hash ^= hash >>> 16;
+        return mPartitions[(hash & 0x7FFFFFFF) % mPartitions.length];
+    }
+
+    /**
+     * A worker thread, its queue and the engines it owns
+     */
+    private final class Partition implements Runnable
+    {
+        final BlockingQueue<Event<?, ?>> queue;
+        final Thread thread;
+        /**
+         * Only accessed by {@link #thread}
+         */
+        private final Map<K, FsmEngine<E, T>> engines = new HashMap<>();
+        /**
+         * Set if the worker died, after which nothing is consumed from {@link #queue}
+         */
+        volatile Throwable failure;
+
+        Partition(int queueCapacity, ThreadFactory threadFactory)
+        {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run()
+        {
+            List<Event<?, ?>> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+            try
+            {
+                while(true)
+                {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+                    for(int i = 0, size = batch.size(); i < size; i++)
+                    {
+                        Event<K, T> event = (Event<K, T>) batch.get(i);
+                        if(event == Event.SHUTDOWN)
+                            return;
+                        if(event.evict)
+                            engines.remove(event.key);
+                        else
+                            apply(event);
+                    }
+                    batch.clear();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                //exit
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+                //release any producers blocked on the full queue, later ones see the failure
+                queue.clear();
+                throw t;
+            }
+        }
+
+        void checkNotFailed()
+        {
+            if(failure != null)
+                throw new IllegalStateException("Partition worker failed", failure);
+        }
+
+        private void apply(Event<K, T> event)
+        {
+            try
+            {
+                FsmEngine<E, T> engine = engines.get(event.key);
+                if(engine == null)
+                {
+                    engine = mEngineFactory.newEngine(event.key);
+                    engines.put(event.key, engine);
+                }
+                engine.trigger(event.triggerEnum, event.optionalInputData);
+            }
+            catch(RuntimeException e)
+            {
+                try
+                {
+                    mErrorHandler.onError(event.key, event.triggerEnum, event.optionalInputData, e);
+                }
+                catch(Throwable t)
+                {
+                    //a failing handler must not stop the worker
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+            }
+        }
+    }
+
+    private static final class Event<K, T>
+    {
+        static final Event<Object, Object> SHUTDOWN = new Event<>(null, null, null, false);
+
+        final K key;
+        final T triggerEnum;
+        final Object optionalInputData;
+        /**
+         * Remove the engine for {@link #key} rather than trigger it
+         */
+        final boolean evict;
+
+        Event(K key, T triggerEnum, Object optionalInputData, boolean evict)
+        {
+            this.key = key;
+            this.triggerEnum = triggerEnum;
+            this.optionalInputData = optionalInputData;
+            this.evict = evict;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.kodroid.engine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel backing state timeouts (see {@link FsmEngine.Cylinder#setTimeout(long, TimeUnit, Object)}),
+ * shared by any number of {@link FsmEngine}s via {@link FsmEngine#setTimingWheel(TimingWheel)}.
+ *
+ * Each engine owns a single reusable timer which is armed on entering a state with a timeout and cancelled on leaving
+ * it, both O(1) and without allocation. Timers are held in intrusive doubly linked lists, one per wheel slot, with
+ * timeouts longer than a revolution staying in their slot for further revolutions.
+ *
+ * Time only moves forward when {@link #advance()} / {@link #advanceTo(long)} is called, which fires the timeout
+ * trigger of every engine whose timeout has expired on the calling thread. As engines are not thread safe this should
+ * be the thread driving the engines, e.g. called from the same event loop. Timeouts fire with a resolution of one tick
+ * and never early.
+ *
+ * Not thread safe.
+ */
+public class TimingWheel
+{
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long mTickNanos;
+    private final long mStartNanos;
+    /**
+     * Head of each slots timer list
+     */
+    private final Timer[] mSlots;
+    private final int mMask;
+    /**
+     * Last tick processed
+     */
+    private long mCurrentTick;
+    private int mScheduledCount;
+
+    /**
+     * @param tickDuration timeout resolution
+     * @param unit
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit)
+    {
+        this(tickDuration, unit, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickDuration timeout resolution
+     * @param unit
+     * @param wheelSize number of slots, rounded up to a power of two. Timeouts up to wheelSize ticks long expire
+     *                  within one revolution.
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize)
+    {
+        mTickNanos = unit.toNanos(tickDuration);
+        if(mTickNanos <= 0)
+            throw new IllegalArgumentException("Tick duration must be positive");
+        mStartNanos = System.nanoTime();
+        mSlots = new Timer[Integer.highestOneBit(Math.max(1, wheelSize - 1) << 1)];
+        mMask = mSlots.length - 1;
+    }
+
+    //=====================================================//
+    // Public interface
+    //=====================================================//
+
+    /**
+     * Calls {@link #advanceTo(long)} with the current {@link System#nanoTime()}
+     *
+     * @return number of timeouts fired
+     */
+    public int advance()
+    {
+        return advanceTo(System.nanoTime());
+    }
+
+    /**
+     * Move the wheel forward to the passed time, firing every timeout that has expired by then. If a timeout trigger
+     * throws, the rest of its slot is still fired before the (first) exception is rethrown, and the remaining ticks are
+     * processed by the next call.
+     *
+     * @param nanoTime time in {@link System#nanoTime()} terms
+     * @return number of timeouts fired
+     */
+    public int advanceTo(long nanoTime)
+    {
+        long targetTick = (nanoTime - mStartNanos) / mTickNanos;
+        //visit each slot at most once, timers due in skipped ticks fire on the visit
+        if(targetTick - mCurrentTick > mSlots.length)
+            mCurrentTick = targetTick - mSlots.length;
+
+        int fired = 0;
+        while(mCurrentTick < targetTick)
+        {
+            mCurrentTick++;
+            fired += expire((int) (mCurrentTick & mMask), mCurrentTick);
+        }
+        return fired;
+    }
+
+    /**
+     * @return number of currently armed timeouts
+     */
+    public int getScheduledCount()
+    {
+        return mScheduledCount;
+    }
+
+    //=====================================================//
+    // Timers (called by FsmEngine)
+    //=====================================================//
+
+    /**
+     * Arm the passed timer, cancelling it first if already armed
+     *
+     * @param timer
+     * @param delayNanos time from now until the timer fires
+     */
+    void schedule(Timer timer, long delayNanos)
+    {
+        cancel(timer);
+        //round up from now, not from the last tick processed which may be well in the past
+        long deadlineNanos = System.nanoTime() - mStartNanos + delayNanos;
+        long deadlineTick = (deadlineNanos + mTickNanos - 1) / mTickNanos;
+        timer.deadlineTick = Math.max(mCurrentTick + 1, deadlineTick);
+        timer.slot = (int) (timer.deadlineTick & mMask);
+
+        Timer head = mSlots[timer.slot];
+        timer.next = head;
+        if(head != null)
+            head.prev = timer;
+        mSlots[timer.slot] = timer;
+        timer.armed = true;
+        mScheduledCount++;
+    }
+
+    /**
+     * Disarm the passed timer, no-op if not armed
+     */
+    void cancel(Timer timer)
+    {
+        timer.due = false;
+        if(!timer.armed)
+            return;
+
+        if(timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            mSlots[timer.slot] = timer.next;
+        if(timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = null;
+        timer.next = null;
+        timer.armed = false;
+        mScheduledCount--;
+    }
+
+    /**
+     * Fire all timers in the passed slot which are due by the passed tick. Due timers are unlinked in a single pass
+     * first, so later revolution timers are only walked once however many fire.
+     */
+    private int expire(int slot, long tick)
+    {
+        Timer dueHead = null;
+        Timer dueTail = null;
+        for(Timer timer = mSlots[slot]; timer != null; )
+        {
+            Timer next = timer.next;
+            if(timer.deadlineTick <= tick)
+            {
+                //disarm before firing so the trigger can re-arm it
+                cancel(timer);
+                timer.due = true;
+                if(dueTail == null)
+                    dueHead = timer;
+                else
+                    dueTail.nextDue = timer;
+                dueTail = timer;
+            }
+            timer = next;
+        }
+
+        int fired = 0;
+        RuntimeException failure = null;
+        for(Timer timer = dueHead; timer != null; )
+        {
+            Timer next = timer.nextDue;
+            timer.nextDue = null;
+            //an earlier firing may have cancelled or re-armed this timer
+            if(timer.due)
+            {
+                timer.due = false;
+                try
+                {
+                    timer.engine.fireTimeout();
+                    fired++;
+                }
+                catch(RuntimeException e)
+                {
+                    if(failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+            timer = next;
+        }
+        if(failure != null)
+            throw failure;
+        return fired;
+    }
+
+    /**
+     * Per engine timer, reused for every state entered
+     */
+    static final class Timer
+    {
+        final FsmEngine<?, ?> engine;
+        Timer prev;
+        Timer next;
+        long deadlineTick;
+        int slot;
+        boolean armed;
+        /**
+         * Unlinked by {@link #expire(int, long)} and waiting to fire, cleared if cancelled meanwhile
+         */
+        boolean due;
+        Timer nextDue;
+
+        Timer(FsmEngine<?, ?> engine)
+        {
+            this.engine = engine;
+        }
+    }
+}
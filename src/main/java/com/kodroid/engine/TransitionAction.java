@@ -0,0 +1,20 @@
+package com.kodroid.engine;
+
+/**
+ * Enter / exit / trigger action which is passed its input data and the machine it is running for, rather than holding
+ * either. As such a single instance is safe to share between engines and threads, and is reentrant.
+ *
+ * {@link FsmEngine.Action} is adapted onto this interface.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger type
+ * @param <D> Input data type, as declared by the owning Cylinders / Triggers required data type
+ */
+public interface TransitionAction<E, T, D>
+{
+    /**
+     * @param inputData data associated with this transition - may be null
+     * @param context the machine this action is running for. Valid for the duration of this call only.
+     */
+    void run(D inputData, TransitionContext<E, T> context);
+}
@@ -0,0 +1,26 @@
+package com.kodroid.engine;
+
+/**
+ * The machine a {@link TransitionAction} is running for. Engines pass themselves (or a preallocated view of
+ * themselves) so invoking an action does not allocate.
+ *
+ * @param <E> State enum type
+ * @param <T> Trigger type
+ */
+public interface TransitionContext<E, T>
+{
+    /**
+     * @return current state
+     */
+    E getCurrentState();
+
+    /**
+     * See {@link FsmEngine#nextState(Object, Object)}
+     */
+    void nextState(E state, Object optionalInputData);
+
+    /**
+     * See {@link FsmEngine#trigger(Object, Object)}
+     */
+    void trigger(T triggerEnum, Object optionalInputData);
+}
@@ -0,0 +1,19 @@
+package com.kodroid.engine;
+
+/**
+ * Condition deciding whether a guarded {@link FsmEngine.Trigger} handles an event. See
+ * {@link FsmDefinition#defineTrigger(Object, Object, TriggerGuard)}.
+ *
+ * Guards are only evaluated for data accepted by the required data types of their Trigger and its to-state, so can
+ * safely assume that type. They must not have side effects as they may be evaluated for events no Trigger ends up handling.
+ *
+ * @param <D> Input data type
+ */
+public interface TriggerGuard<D>
+{
+    /**
+     * @param inputData data passed with the trigger event, may be null
+     * @return true if the guarded Trigger should handle the event
+     */
+    boolean accepts(D inputData);
+}
@@ -0,0 +1,176 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+@RunWith(JUnit4.class)
+public class AsyncObserverTest
+{
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        NEXT;
+    }
+
+    /**
+     * Runs tasks only when asked to, on the test thread
+     */
+    private static class ManualExecutor implements Executor
+    {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        void runAll()
+        {
+            Runnable task;
+            while((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    private static FsmEngine<TestStates, TestTriggers> newEngine()
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineCylinder(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.NEXT, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.NEXT, TestStates.TWO).setToState(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.NEXT, TestStates.THREE).setToState(TestStates.ONE);
+        return new FsmEngine<>(definition);
+    }
+
+    @Test
+    public void currentState_buffered_shouldDeliverEveryStateInOrderOnExecutor()
+    {
+        //setup
+        ManualExecutor executor = new ManualExecutor();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        FsmEngine<TestStates, TestTriggers> fsm = newEngine();
+        fsm.addObserver(new AsyncObserver<>(mockObserver, executor, 8));
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.NEXT, null);
+        fsm.trigger(TestTriggers.NEXT, null);
+
+        //test
+        Mockito.verifyZeroInteractions(mockObserver);
+        executor.runAll();
+        InOrder inOrder = Mockito.inOrder(mockObserver);
+        inOrder.verify(mockObserver).currentState(TestStates.ONE, null);
+        inOrder.verify(mockObserver).currentState(TestStates.TWO, null);
+        inOrder.verify(mockObserver).currentState(TestStates.THREE, null);
+    }
+
+    @Test
+    public void currentState_beyondCapacity_shouldGrowAndDeliverEveryState()
+    {
+        //setup
+        ManualExecutor executor = new ManualExecutor();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        FsmEngine<TestStates, TestTriggers> fsm = newEngine();
+        AsyncObserver<TestStates> asyncObserver = new AsyncObserver<>(mockObserver, executor, 1);
+        fsm.addObserver(asyncObserver);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.NEXT, null);
+        fsm.trigger(TestTriggers.NEXT, null);
+
+        //test
+        executor.runAll();
+        InOrder inOrder = Mockito.inOrder(mockObserver);
+        inOrder.verify(mockObserver).currentState(TestStates.ONE, null);
+        inOrder.verify(mockObserver).currentState(TestStates.TWO, null);
+        inOrder.verify(mockObserver).currentState(TestStates.THREE, null);
+        Assert.assertEquals(0, asyncObserver.getDroppedCount());
+    }
+
+    @Test
+    public void currentState_conflating_shouldDeliverOnlyLatestState()
+    {
+        //setup
+        ManualExecutor executor = new ManualExecutor();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        FsmEngine<TestStates, TestTriggers> fsm = newEngine();
+        AsyncObserver<TestStates> asyncObserver = AsyncObserver.conflating(mockObserver, executor);
+        fsm.addObserver(asyncObserver);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.NEXT, null);
+        fsm.trigger(TestTriggers.NEXT, null);
+
+        //test
+        executor.runAll();
+        Mockito.verify(mockObserver).currentState(TestStates.THREE, null);
+        Mockito.verifyNoMoreInteractions(mockObserver);
+        Assert.assertEquals(2, asyncObserver.getDroppedCount());
+    }
+
+    @Test
+    public void currentState_delegateThrows_shouldKeepDelivering()
+    {
+        //setup
+        ManualExecutor executor = new ManualExecutor();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        Mockito.doThrow(new RuntimeException()).when(mockObserver).currentState(TestStates.ONE, null);
+        AsyncObserver<TestStates> asyncObserver = new AsyncObserver<>(mockObserver, executor, 8);
+        asyncObserver.currentState(TestStates.ONE, null);
+        asyncObserver.currentState(TestStates.TWO, null);
+
+        //test
+        try
+        {
+            executor.runAll();
+            Assert.fail();
+        }
+        catch(RuntimeException e)
+        {
+            //expected
+        }
+        executor.runAll();
+        Mockito.verify(mockObserver).currentState(TestStates.TWO, null);
+    }
+
+    @Test
+    public void currentState_executorRejects_shouldDropAndRecover()
+    {
+        //setup
+        final boolean[] rejecting = {true};
+        final ManualExecutor executor = new ManualExecutor();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        AsyncObserver<TestStates> asyncObserver = new AsyncObserver<>(mockObserver, new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                if(rejecting[0])
+                    throw new RejectedExecutionException();
+                executor.execute(command);
+            }
+        }, 8);
+
+        //test
+        asyncObserver.currentState(TestStates.ONE, null);
+        Assert.assertEquals(1, asyncObserver.getDroppedCount());
+        rejecting[0] = false;
+        asyncObserver.currentState(TestStates.TWO, null);
+        executor.runAll();
+        Mockito.verify(mockObserver).currentState(TestStates.TWO, null);
+        Mockito.verifyNoMoreInteractions(mockObserver);
+    }
+}
@@ -0,0 +1,106 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class ConcurrentFsmEngineTest
+{
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        TOGGLE;
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> toggleDefinition(FsmEngine.Action enterAction)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setEnterAction(enterAction);
+        definition.defineCylinder(TestStates.TWO).setEnterAction(enterAction);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.TWO).setToState(TestStates.ONE);
+        return definition;
+    }
+
+    @Test
+    public void trigger_uncontended_shouldTransitionAndNotifyObserver()
+    {
+        //setup
+        ConcurrentFsmEngine<TestStates, TestTriggers> fsm = new ConcurrentFsmEngine<>(toggleDefinition(null), ConcurrentFsmEngine.RaceMode.REJECT);
+        fsm.start(TestStates.ONE);
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        fsm.addObserver(mockObserver);
+
+        //test
+        Assert.assertTrue(fsm.trigger(TestTriggers.TOGGLE, null));
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+        Mockito.verify(mockObserver).currentState(TestStates.TWO, null);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_alreadyStarted_shouldThrow()
+    {
+        ConcurrentFsmEngine<TestStates, TestTriggers> fsm = new ConcurrentFsmEngine<>(toggleDefinition(null), ConcurrentFsmEngine.RaceMode.RETRY);
+        fsm.start(TestStates.ONE);
+        fsm.start(TestStates.ONE);
+    }
+
+    @Test
+    public void trigger_contendedRetry_everyTriggerShouldCommitExactlyOnce() throws InterruptedException
+    {
+        //setup
+        final AtomicInteger enterCount = new AtomicInteger();
+        FsmEngine.Action countingAction = new FsmEngine.Action() {
+            @Override
+            public void run() {
+                enterCount.incrementAndGet();
+            }
+        };
+        final ConcurrentFsmEngine<TestStates, TestTriggers> fsm = new ConcurrentFsmEngine<>(toggleDefinition(countingAction), ConcurrentFsmEngine.RaceMode.RETRY);
+        fsm.start(TestStates.ONE);
+        enterCount.set(0);
+
+        final int threads = 4;
+        final int triggersPerThread = 10000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i++)
+        {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try
+                    {
+                        startLatch.await();
+                        for(int j = 0; j < triggersPerThread; j++)
+                            fsm.trigger(TestTriggers.TOGGLE, null);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                    finally
+                    {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        //test
+        startLatch.countDown();
+        doneLatch.await();
+        Assert.assertEquals(threads * triggersPerThread, enterCount.get());
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+}
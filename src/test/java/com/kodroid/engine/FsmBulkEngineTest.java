@@ -0,0 +1,121 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public class FsmBulkEngineTest
+{
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TRIGGER_TWO;
+    }
+
+    private FsmDefinition<TestStates, TestTriggers> definition(FsmEngine.Action enterTwo, FsmEngine.Action exitOne)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setExitAction(exitOne);
+        definition.defineCylinder(TestStates.TWO).setEnterAction(enterTwo);
+        definition.defineCylinder(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_TWO, TestStates.TWO).setToState(TestStates.THREE);
+        return definition;
+    }
+
+    @Test
+    public void trigger_validTrigger_shouldOnlyTransitionThatMachine()
+    {
+        //setup
+        FsmEngine.Action mockEnterAction = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action mockExitAction = Mockito.mock(FsmEngine.Action.class);
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition(mockEnterAction, mockExitAction), 3);
+        bulk.startAll(TestStates.ONE);
+
+        //test
+        bulk.trigger(1, TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(TestStates.ONE, bulk.getState(0));
+        Assert.assertEquals(TestStates.TWO, bulk.getState(1));
+        Assert.assertEquals(TestStates.ONE, bulk.getState(2));
+        Mockito.verify(mockExitAction, Mockito.times(1)).run();
+        Mockito.verify(mockEnterAction, Mockito.times(1)).run();
+    }
+
+    @Test
+    public void triggerAll_offHeap_shouldTransitionAllPassedMachines()
+    {
+        //setup
+        FsmEngine.Action mockEnterAction = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action mockExitAction = Mockito.mock(FsmEngine.Action.class);
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition(mockEnterAction, mockExitAction), 4, true);
+        bulk.startAll(TestStates.ONE);
+
+        //test
+        bulk.triggerAll(new int[]{0, 2, 3}, TestTriggers.TRIGGER_ONE);
+        bulk.triggerAll(new int[]{3}, TestTriggers.TRIGGER_TWO);
+        Assert.assertEquals(TestStates.TWO, bulk.getState(0));
+        Assert.assertEquals(TestStates.ONE, bulk.getState(1));
+        Assert.assertEquals(TestStates.TWO, bulk.getState(2));
+        Assert.assertEquals(TestStates.THREE, bulk.getState(3));
+        Mockito.verify(mockEnterAction, Mockito.times(3)).run();
+    }
+
+    @Test
+    public void getState_notStarted_shouldBeNull()
+    {
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition(null, null), 2);
+        bulk.start(0, TestStates.THREE);
+
+        Assert.assertEquals(TestStates.THREE, bulk.getState(0));
+        Assert.assertNull(bulk.getState(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void trigger_notStarted_shouldThrow()
+    {
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition(null, null), 2);
+        bulk.trigger(0, TestTriggers.TRIGGER_ONE, null);
+    }
+
+    @Test
+    public void trigger_dataRejectedByToState_shouldRunNoActionsAndStayInState()
+    {
+        //setup
+        FsmEngine.Action mockEnterAction = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action mockExitAction = Mockito.mock(FsmEngine.Action.class);
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setExitAction(mockExitAction);
+        definition.defineCylinder(TestStates.TWO).setRequiredDataType(String.class).setEnterAction(mockEnterAction);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition, 1);
+        bulk.start(0, TestStates.ONE);
+
+        //test
+        try
+        {
+            bulk.trigger(0, TestTriggers.TRIGGER_ONE, null);
+            Assert.fail();
+        }
+        catch(IllegalStateException e)
+        {
+            //expected
+        }
+        Assert.assertEquals(TestStates.ONE, bulk.getState(0));
+        Mockito.verifyZeroInteractions(mockExitAction, mockEnterAction);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void trigger_invalidTriggerForCurrentState_shouldThrow()
+    {
+        FsmBulkEngine<TestStates, TestTriggers> bulk = new FsmBulkEngine<>(definition(null, null), 2);
+        bulk.startAll(TestStates.ONE);
+        bulk.trigger(0, TestTriggers.TRIGGER_TWO, null);
+    }
+}
@@ -0,0 +1,120 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class FsmEnginePoolTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TIMEOUT;
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> definition()
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO).setTimeout(10, TimeUnit.MILLISECONDS, TestTriggers.TIMEOUT);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TIMEOUT, TestStates.TWO).setToState(TestStates.ONE);
+        return definition;
+    }
+
+    @Test
+    public void release_thenAcquire_shouldReuseResetEngine()
+    {
+        //setup
+        FsmEnginePool<TestStates, TestTriggers> pool = new FsmEnginePool<>(definition());
+        FsmEngine<TestStates, TestTriggers> engine = pool.acquire();
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        engine.addObserver(mockObserver);
+        engine.start(TestStates.ONE);
+        engine.trigger(TestTriggers.TRIGGER_ONE, null);
+        pool.release(engine);
+
+        //test
+        FsmEngine<TestStates, TestTriggers> reused = pool.acquire();
+        Assert.assertSame(engine, reused);
+        Assert.assertNull(reused.getCurrentState());
+        reused.start(TestStates.ONE);
+        Assert.assertEquals(TestStates.ONE, reused.getCurrentState());
+        Mockito.verify(mockObserver, Mockito.times(1)).currentState(TestStates.ONE, null);
+        Assert.assertNotSame(reused, pool.acquire());
+    }
+
+    @Test
+    public void release_journaledEngine_shouldNotJournalReuseUnderOldMachineId() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmJournal journal = new FsmJournal(directory, null);
+        FsmEnginePool<TestStates, TestTriggers> pool = new FsmEnginePool<>(definition());
+        FsmEngine<TestStates, TestTriggers> engine = pool.acquire();
+        engine.setJournal(journal, 1);
+        engine.start(TestStates.ONE);
+        pool.release(engine);
+
+        //test
+        FsmEngine<TestStates, TestTriggers> reused = pool.acquire();
+        Assert.assertSame(engine, reused);
+        reused.start(TestStates.TWO);
+        journal.close();
+        final List<Long> machineIds = new ArrayList<>();
+        FsmJournal.replay(directory, new FsmJournal.Listener()
+        {
+            @Override
+            public void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data)
+            {
+                machineIds.add(machineId);
+            }
+        });
+        Assert.assertEquals(1, machineIds.size());
+    }
+
+    @Test
+    public void release_engineWithArmedTimeout_shouldCancelTimeout()
+    {
+        //setup
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        FsmEnginePool<TestStates, TestTriggers> pool = new FsmEnginePool<>(definition());
+        FsmEngine<TestStates, TestTriggers> engine = pool.acquire();
+        engine.setTimingWheel(wheel);
+        engine.start(TestStates.ONE);
+        engine.trigger(TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(1, wheel.getScheduledCount());
+
+        //test
+        pool.release(engine);
+        Assert.assertEquals(0, wheel.getScheduledCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void release_engineOfOtherDefinition_shouldThrow()
+    {
+        //setup
+        FsmEnginePool<TestStates, TestTriggers> pool = new FsmEnginePool<>(definition());
+
+        //test
+        pool.release(new FsmEngine<>(definition()));
+    }
+}
@@ -20,6 +20,16 @@ public class FsmEngineTest
         TRIGGER_ONE;
     }
 
+    enum NestedStates
+    {
+        DISCONNECTED, CONNECTED, IDLE, BUSY;
+    }
+
+    enum NestedTriggers
+    {
+        DISCONNECT, START_WORK;
+    }
+
     //=====================================================//
     // State Actions
     //=====================================================//
@@ -73,6 +83,75 @@ public class FsmEngineTest
         Mockito.verify(spyAction, Mockito.times(1)).run();
     }
 
+    @Test
+    public void nextState_transitionActionDefined_shouldReceiveDataAndContext()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        final String[] received = new String[1];
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(new TransitionAction<TestStates, FsmEngine.NoTriggers, String>() {
+            @Override
+            public void run(String inputData, TransitionContext<TestStates, FsmEngine.NoTriggers> context) {
+                received[0] = inputData;
+                Assert.assertSame(fsm, context);
+                context.nextState(TestStates.TWO, null);
+            }
+        }).setRequiredDataType(String.class);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.start(TestStates.ONE, "TestString");
+
+        //test
+        Assert.assertEquals("TestString", received[0]);
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test
+    public void nextState_nestedTransitionFromSharedAction_shouldNotOverwriteOuterData()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action sharedAction = new FsmEngine.Action() {
+            @Override
+            public void run() {
+                Integer data = getOptionalInputDataAs(Integer.class);
+                if(data == 1)
+                    fsm.nextState(TestStates.TWO, 2);
+                Assert.assertEquals(data, getOptionalInputData());
+            }
+        };
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(sharedAction).setRequiredDataType(Integer.class);
+        fsm.defineCylinder(TestStates.TWO).setEnterAction(sharedAction).setRequiredDataType(Integer.class);
+        fsm.start(TestStates.ONE, 1);
+
+        //test
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test
+    public void reset_fromEnterAction_shouldThrow()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(new FsmEngine.Action() {
+            @Override
+            public void run() {
+                fsm.reset();
+            }
+        });
+
+        //test
+        try
+        {
+            fsm.start(TestStates.ONE);
+            Assert.fail();
+        }
+        catch(RuntimeException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+
     //=====================================================//
     // Triggers (+ Observers & Data Passing)
     //=====================================================//
@@ -138,6 +217,29 @@ public class FsmEngineTest
         Mockito.verify(mockObserver).currentState(TestStates.ONE, null);
     }
 
+    @Test
+    public void trigger_multipleObservers_shouldNotifyAllRegistered()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        FsmEngine.Observer<TestStates> mockObserverOne = Mockito.mock(FsmEngine.Observer.class);
+        FsmEngine.Observer<TestStates> mockObserverTwo = Mockito.mock(FsmEngine.Observer.class);
+        fsm.addObserver(mockObserverOne);
+        fsm.addObserver(mockObserverTwo);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertTrue(fsm.removeObserver(mockObserverTwo));
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        Mockito.verify(mockObserverOne).currentState(TestStates.ONE, null);
+        Mockito.verify(mockObserverOne).currentState(TestStates.TWO, null);
+        Mockito.verify(mockObserverTwo).currentState(TestStates.ONE, null);
+        Mockito.verifyNoMoreInteractions(mockObserverTwo);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void trigger_invalidTriggerForCurrentState_shouldThrow()
     {
@@ -199,6 +301,611 @@ public class FsmEngineTest
         fsm.trigger(TestTriggers.TRIGGER_ONE, "I'm the wrong data type!");
     }
 
+    @Test
+    public void trigger_subtypeOfRequiredDataTypes_shouldTransition()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(CharSequence.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO).setRequiredDataType(CharSequence.class);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.DATA_TYPE_MISMATCH, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, 100));
+        fsm.trigger(TestTriggers.TRIGGER_ONE, new StringBuilder("builder"));
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+        fsm.nextState(TestStates.TWO, "string");
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nextState_wrongDataTypeForState_shouldThrow()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE).setRequiredDataType(CharSequence.class);
+        fsm.start(TestStates.ONE, "string");
+
+        //test
+        fsm.nextState(TestStates.ONE, 100);
+    }
+
+    @Test
+    public void trigger_nonEnumStatesAndTriggers_shouldTransition()
+    {
+        //setup
+        FsmEngine<String, String> fsm = new FsmEngine<>();
+        FsmEngine.Action mockEnterAction = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder("ONE");
+        fsm.defineCylinder("TWO").setEnterAction(mockEnterAction);
+        fsm.defineTrigger("TRIGGER_ONE", "ONE").setToState("TWO");
+        fsm.start("ONE");
+
+        //test
+        fsm.trigger("TRIGGER_ONE", null);
+        Mockito.verify(mockEnterAction, Mockito.times(1)).run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void trigger_nonEnumTriggerNotDefinedForCurrentState_shouldThrow()
+    {
+        //setup
+        FsmEngine<String, String> fsm = new FsmEngine<>();
+        fsm.defineCylinder("ONE");
+        fsm.defineCylinder("TWO");
+        fsm.defineTrigger("TRIGGER_ONE", "TWO");
+        fsm.start("ONE");
+
+        //test
+        fsm.trigger("TRIGGER_ONE", null);
+    }
+
+    //=====================================================//
+    // Non-throwing dispatch
+    //=====================================================//
+
+    @Test
+    public void tryTrigger_validTrigger_shouldAcceptAndTransition()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.ACCEPTED, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, null));
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test
+    public void tryTrigger_invalidTriggers_shouldReturnReasonAndRunNoActions()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action mockExitAction = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder(TestStates.ONE).setExitAction(mockExitAction);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(String.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.NO_TRANSITION_FOR_STATE, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, null));
+        Assert.assertEquals(DispatchResult.DATA_TYPE_MISMATCH, fsm.tryNextState(TestStates.TWO, null));
+        Assert.assertEquals(DispatchResult.UNKNOWN_STATE, fsm.tryNextState(TestStates.THREE, null));
+        Mockito.verifyZeroInteractions(mockExitAction);
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+
+    @Test
+    public void tryTrigger_noTriggersDefinedForEvent_shouldReturnUnknownTrigger()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.UNKNOWN_TRIGGER, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, null));
+    }
+
+    @Test
+    public void tryTrigger_datalessTransitionPassedData_shouldRejectAndRunNoActions()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action mockExitAction = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder(TestStates.ONE).setExitAction(mockExitAction);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.DATA_TYPE_MISMATCH, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, "data"));
+        Mockito.verifyZeroInteractions(mockExitAction);
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+
+    @Test
+    public void tryTrigger_actionOnlyTrigger_shouldRunActionWithAnyData()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action mockAction = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setAction(mockAction);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.ACCEPTED, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, "data"));
+        Mockito.verify(mockAction, Mockito.times(1)).run();
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+
+    //=====================================================//
+    // Shared Definitions
+    //=====================================================//
+
+    @Test
+    public void sharedDefinition_multipleEngines_shouldTransitionIndependently()
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        FsmEngine<TestStates, TestTriggers> fsmOne = new FsmEngine<>(definition).start(TestStates.ONE);
+        FsmEngine<TestStates, TestTriggers> fsmTwo = new FsmEngine<>(definition).start(TestStates.ONE);
+
+        //test
+        fsmOne.trigger(TestTriggers.TRIGGER_ONE, null);
+        FsmEngine.Observer<TestStates> mockObserverOne = Mockito.mock(FsmEngine.Observer.class);
+        FsmEngine.Observer<TestStates> mockObserverTwo = Mockito.mock(FsmEngine.Observer.class);
+        fsmOne.addObserver(mockObserverOne);
+        fsmTwo.addObserver(mockObserverTwo);
+        Mockito.verify(mockObserverOne).currentState(TestStates.TWO, null);
+        Mockito.verify(mockObserverTwo).currentState(TestStates.ONE, null);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sharedDefinition_defineAfterFrozen_shouldThrow()
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+
+        //test
+        fsm.defineCylinder(TestStates.TWO);
+    }
+
+    //=====================================================//
+    // Guarded Triggers
+    //=====================================================//
+
+    private static final TriggerGuard<Integer> POSITIVE = new TriggerGuard<Integer>()
+    {
+        @Override
+        public boolean accepts(Integer inputData)
+        {
+            return inputData > 0;
+        }
+    };
+
+    @Test
+    public void trigger_guardedTriggers_shouldTransitionViaFirstAcceptingGuardElseFallback()
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO).setRequiredDataType(Integer.class);
+        definition.defineCylinder(TestStates.THREE).setRequiredDataType(Integer.class);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE, POSITIVE).setToState(TestStates.TWO);
+        FsmEngine<TestStates, TestTriggers> positive = new FsmEngine<>(definition).start(TestStates.ONE);
+        FsmEngine<TestStates, TestTriggers> negative = new FsmEngine<>(definition).start(TestStates.ONE);
+
+        //test
+        positive.trigger(TestTriggers.TRIGGER_ONE, 1);
+        negative.trigger(TestTriggers.TRIGGER_ONE, -1);
+        Assert.assertEquals(TestStates.TWO, positive.getCurrentState());
+        Assert.assertEquals(TestStates.THREE, negative.getCurrentState());
+    }
+
+    @Test
+    public void tryTrigger_noGuardAccepts_shouldReturnNoGuardMatched()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(Integer.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE, POSITIVE).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.NO_GUARD_MATCHED, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, -1));
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+    }
+
+    @Test
+    public void tryTrigger_wrongDataTypeForTypedGuard_shouldReturnDataTypeMismatch()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(Integer.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE, POSITIVE).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(DispatchResult.DATA_TYPE_MISMATCH, fsm.tryTrigger(TestTriggers.TRIGGER_ONE, "1"));
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+        try
+        {
+            fsm.trigger(TestTriggers.TRIGGER_ONE, "1");
+            Assert.fail();
+        }
+        catch(IllegalStateException e)
+        {
+            //expected, not a ClassCastException from the guard
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void defineTrigger_secondUnguardedForCombo_shouldThrow()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE, POSITIVE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE);
+
+        //test
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE);
+    }
+
+    //=====================================================//
+    // Hierarchical States
+    //=====================================================//
+
+    @Test
+    public void trigger_definedOnParentState_shouldBeInheritedAndExitChainInOrder()
+    {
+        //setup
+        FsmEngine<NestedStates, NestedTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action connectedExit = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action idleExit = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder(NestedStates.DISCONNECTED);
+        fsm.defineCylinder(NestedStates.CONNECTED).setExitAction(connectedExit);
+        fsm.defineCylinder(NestedStates.IDLE).setParent(NestedStates.CONNECTED).setExitAction(idleExit);
+        fsm.defineCylinder(NestedStates.BUSY).setParent(NestedStates.CONNECTED);
+        fsm.defineTrigger(NestedTriggers.DISCONNECT, NestedStates.CONNECTED).setToState(NestedStates.DISCONNECTED);
+        fsm.start(NestedStates.IDLE);
+
+        //test
+        fsm.trigger(NestedTriggers.DISCONNECT, null);
+        Assert.assertEquals(NestedStates.DISCONNECTED, fsm.getCurrentState());
+        InOrder inOrder = Mockito.inOrder(idleExit, connectedExit);
+        inOrder.verify(idleExit).run();
+        inOrder.verify(connectedExit).run();
+    }
+
+    @Test
+    public void trigger_betweenSiblingSubstates_shouldNotExitOrEnterParent()
+    {
+        //setup
+        FsmEngine<NestedStates, NestedTriggers> fsm = new FsmEngine<>();
+        FsmEngine.Action connectedEnter = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action connectedExit = Mockito.mock(FsmEngine.Action.class);
+        FsmEngine.Action busyEnter = Mockito.mock(FsmEngine.Action.class);
+        fsm.defineCylinder(NestedStates.CONNECTED).setEnterAction(connectedEnter).setExitAction(connectedExit);
+        fsm.defineCylinder(NestedStates.IDLE).setParent(NestedStates.CONNECTED);
+        fsm.defineCylinder(NestedStates.BUSY).setParent(NestedStates.CONNECTED).setEnterAction(busyEnter);
+        fsm.defineTrigger(NestedTriggers.START_WORK, NestedStates.IDLE).setToState(NestedStates.BUSY);
+        fsm.start(NestedStates.IDLE);
+
+        //test
+        fsm.trigger(NestedTriggers.START_WORK, null);
+        Assert.assertEquals(NestedStates.BUSY, fsm.getCurrentState());
+        Mockito.verify(connectedEnter, Mockito.times(1)).run();
+        Mockito.verify(busyEnter, Mockito.times(1)).run();
+        Mockito.verifyZeroInteractions(connectedExit);
+    }
+
+    @Test
+    public void trigger_definedOnSubstateAndParent_shouldUseSubstates()
+    {
+        //setup
+        FsmEngine<NestedStates, NestedTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(NestedStates.DISCONNECTED);
+        fsm.defineCylinder(NestedStates.CONNECTED);
+        fsm.defineCylinder(NestedStates.IDLE).setParent(NestedStates.CONNECTED);
+        fsm.defineCylinder(NestedStates.BUSY).setParent(NestedStates.CONNECTED);
+        fsm.defineTrigger(NestedTriggers.DISCONNECT, NestedStates.CONNECTED).setToState(NestedStates.DISCONNECTED);
+        fsm.defineTrigger(NestedTriggers.DISCONNECT, NestedStates.BUSY);
+        fsm.start(NestedStates.BUSY);
+
+        //test
+        fsm.trigger(NestedTriggers.DISCONNECT, null);
+        Assert.assertEquals(NestedStates.BUSY, fsm.getCurrentState());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_cyclicParentStates_shouldThrow()
+    {
+        //setup
+        FsmEngine<NestedStates, NestedTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(NestedStates.IDLE).setParent(NestedStates.BUSY);
+        fsm.defineCylinder(NestedStates.BUSY).setParent(NestedStates.IDLE);
+
+        //test
+        fsm.start(NestedStates.IDLE);
+    }
+
+    //=====================================================//
+    // Wildcard Triggers
+    //=====================================================//
+
+    @Test
+    public void trigger_definedFromAny_shouldFireFromEveryState()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineCylinder(TestStates.THREE);
+        fsm.defineTriggerFromAny(TestTriggers.TRIGGER_ONE).setToState(TestStates.ONE);
+        fsm.start(TestStates.ONE);
+
+        //test
+        for(TestStates state : TestStates.values())
+        {
+            fsm.nextState(state, null);
+            fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+            Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+        }
+    }
+
+    @Test
+    public void trigger_stateSpecificAndWildcards_shouldPreferMostSpecific()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineCylinder(TestStates.THREE);
+        fsm.defineTriggerFromAny(TestTriggers.TRIGGER_ONE).setToState(TestStates.ONE);
+        fsm.defineTriggerFromStates(TestTriggers.TRIGGER_ONE, TestStates.ONE, TestStates.TWO).setToState(TestStates.THREE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.TWO).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+
+        //test
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(TestStates.THREE, fsm.getCurrentState());
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+        fsm.nextState(TestStates.TWO, null);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test
+    public void trigger_definedFromStatesOnParent_shouldBeInheritedBelowSpecificParentTrigger()
+    {
+        //setup
+        FsmEngine<NestedStates, NestedTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(NestedStates.DISCONNECTED);
+        fsm.defineCylinder(NestedStates.CONNECTED);
+        fsm.defineCylinder(NestedStates.IDLE).setParent(NestedStates.CONNECTED);
+        fsm.defineCylinder(NestedStates.BUSY).setParent(NestedStates.CONNECTED);
+        fsm.defineTriggerFromStates(NestedTriggers.DISCONNECT, NestedStates.CONNECTED).setToState(NestedStates.DISCONNECTED);
+        fsm.defineTrigger(NestedTriggers.START_WORK, NestedStates.CONNECTED).setToState(NestedStates.BUSY);
+        fsm.defineTriggerFromAny(NestedTriggers.START_WORK).setToState(NestedStates.DISCONNECTED);
+        fsm.start(NestedStates.IDLE);
+
+        //test
+        fsm.trigger(NestedTriggers.START_WORK, null);
+        Assert.assertEquals(NestedStates.BUSY, fsm.getCurrentState());
+        fsm.trigger(NestedTriggers.DISCONNECT, null);
+        Assert.assertEquals(NestedStates.DISCONNECTED, fsm.getCurrentState());
+        Assert.assertEquals(DispatchResult.NO_TRANSITION_FOR_STATE, fsm.tryTrigger(NestedTriggers.DISCONNECT, null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void defineTriggerFromStates_stateAlreadyListedForEvent_shouldThrow()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineTriggerFromStates(TestTriggers.TRIGGER_ONE, TestStates.ONE, TestStates.TWO);
+
+        //test
+        fsm.defineTriggerFromStates(TestTriggers.TRIGGER_ONE, TestStates.TWO);
+    }
+
+    //=====================================================//
+    // Run to completion
+    //=====================================================//
+
+    @Test
+    public void nextState_runToCompletionLongChainFromActions_shouldNotOverflowStack()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        final int[] remaining = {100000};
+        TransitionAction<TestStates, FsmEngine.NoTriggers, Object> pingPong = new TransitionAction<TestStates, FsmEngine.NoTriggers, Object>() {
+            @Override
+            public void run(Object inputData, TransitionContext<TestStates, FsmEngine.NoTriggers> context) {
+                if(remaining[0]-- > 0)
+                    context.nextState(context.getCurrentState() == TestStates.ONE ? TestStates.TWO : TestStates.ONE, null);
+            }
+        };
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(pingPong);
+        fsm.defineCylinder(TestStates.TWO).setEnterAction(pingPong);
+        fsm.setRunToCompletion(true);
+
+        //test
+        fsm.start(TestStates.ONE);
+        Assert.assertEquals(-1, remaining[0]);
+    }
+
+    @Test
+    public void trigger_runToCompletionFromAction_shouldQueueUntilActionCompletes()
+    {
+        //setup
+        final FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        final DispatchResult[] nestedResult = new DispatchResult[1];
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setEnterAction(new FsmEngine.Action() {
+            @Override
+            public void run() {
+                nestedResult[0] = fsm.tryTrigger(TestTriggers.TRIGGER_ONE, null);
+                Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+            }
+        });
+        fsm.defineCylinder(TestStates.THREE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.TWO).setToState(TestStates.THREE);
+        fsm.setRunToCompletion(true);
+        fsm.start(TestStates.ONE);
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        fsm.addObserver(mockObserver);
+
+        //test
+        fsm.nextState(TestStates.TWO);
+        Assert.assertEquals(DispatchResult.QUEUED, nestedResult[0]);
+        Assert.assertEquals(TestStates.THREE, fsm.getCurrentState());
+        InOrder inOrder = Mockito.inOrder(mockObserver);
+        inOrder.verify(mockObserver).currentState(TestStates.ONE, null);
+        inOrder.verify(mockObserver).currentState(TestStates.TWO, null);
+        inOrder.verify(mockObserver).currentState(TestStates.THREE, null);
+    }
+
+    @Test
+    public void nextState_runToCompletionMoreEventsThanQueueCapacity_shouldApplyAllInOrder()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(new FsmEngine.Action() {
+            @Override
+            public void run() {
+                for(int i = 0; i < 99; i++)
+                    fsm.nextState(i % 2 == 0 ? TestStates.TWO : TestStates.THREE);
+            }
+        });
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineCylinder(TestStates.THREE);
+        fsm.setRunToCompletion(true);
+
+        //test
+        fsm.start(TestStates.ONE);
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void trigger_runToCompletionQueuedTriggerInvalid_shouldThrowFromOuterCall()
+    {
+        //setup
+        final FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE).setEnterAction(new FsmEngine.Action() {
+            @Override
+            public void run() {
+                fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+            }
+        });
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.TWO);
+        fsm.setRunToCompletion(true);
+
+        //test
+        fsm.start(TestStates.ONE);
+    }
+
+    //=====================================================//
+    // Lazy data
+    //=====================================================//
+
+    /**
+     * Counts how many times the payload is built
+     */
+    private static class CountingSupplier implements DataSupplier<String>
+    {
+        int calls;
+
+        @Override
+        public String get()
+        {
+            calls++;
+            return "payload";
+        }
+    }
+
+    @Test
+    public void triggerLazy_dataNeverRead_shouldNotCallSupplierUntilObserved()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(CharSequence.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO).setRequiredDataType(String.class);
+        fsm.start(TestStates.ONE);
+        CountingSupplier supplier = new CountingSupplier();
+
+        //test
+        fsm.triggerLazy(TestTriggers.TRIGGER_ONE, String.class, supplier);
+        Assert.assertEquals(TestStates.TWO, fsm.getCurrentState());
+        Assert.assertEquals(0, supplier.calls);
+        FsmEngine.Observer<TestStates> mockObserver = Mockito.mock(FsmEngine.Observer.class);
+        fsm.addObserver(mockObserver);
+        Mockito.verify(mockObserver).currentState(TestStates.TWO, "payload");
+        Assert.assertEquals(1, supplier.calls);
+    }
+
+    @Test
+    public void nextStateLazy_dataReadByActions_shouldCallSupplierOnce()
+    {
+        //setup
+        final FsmEngine<TestStates, FsmEngine.NoTriggers> fsm = new FsmEngine<>();
+        final Object[] received = new Object[2];
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(String.class).setEnterAction(new FsmEngine.Action() {
+            @Override
+            public void run() {
+                received[0] = getOptionalInputDataAs(String.class);
+            }
+        }).setExitAction(new TransitionAction<TestStates, FsmEngine.NoTriggers, String>() {
+            @Override
+            public void run(String inputData, TransitionContext<TestStates, FsmEngine.NoTriggers> context) {
+                received[1] = inputData;
+            }
+        });
+        fsm.start(TestStates.ONE);
+        CountingSupplier supplier = new CountingSupplier();
+
+        //test
+        fsm.nextStateLazy(TestStates.TWO, String.class, supplier);
+        fsm.nextState(TestStates.ONE);
+        Assert.assertEquals("payload", received[0]);
+        Assert.assertEquals("payload", received[1]);
+        Assert.assertEquals(1, supplier.calls);
+    }
+
+    @Test
+    public void tryTriggerLazy_wrongDeclaredType_shouldRejectWithoutCallingSupplier()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO).setRequiredDataType(Integer.class);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        fsm.start(TestStates.ONE);
+        CountingSupplier supplier = new CountingSupplier();
+
+        //test
+        Assert.assertEquals(DispatchResult.DATA_TYPE_MISMATCH, fsm.tryTriggerLazy(TestTriggers.TRIGGER_ONE, String.class, supplier));
+        Assert.assertEquals(TestStates.ONE, fsm.getCurrentState());
+        Assert.assertEquals(0, supplier.calls);
+    }
+
     //=====================================================//
     // Race condition
     //=====================================================//
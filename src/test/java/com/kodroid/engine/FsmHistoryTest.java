@@ -0,0 +1,122 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FsmHistoryTest
+{
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TRIGGER_TWO, TRIGGER_THREE;
+    }
+
+    private static FsmEngine<TestStates, TestTriggers> engine()
+    {
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.defineCylinder(TestStates.TWO);
+        fsm.defineCylinder(TestStates.THREE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        fsm.defineTrigger(TestTriggers.TRIGGER_TWO, TestStates.TWO).setToState(TestStates.THREE);
+        fsm.defineTrigger(TestTriggers.TRIGGER_THREE, TestStates.THREE).setToState(TestStates.ONE);
+        return fsm;
+    }
+
+    @Test
+    public void history_moreTransitionsThanCapacity_shouldHoldMostRecentOldestFirst()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = engine();
+        FsmHistory<TestStates, TestTriggers> history = new FsmHistory<>(fsm.getDefinition(), 3);
+        fsm.setHistory(history);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        fsm.trigger(TestTriggers.TRIGGER_TWO, null);
+        fsm.nextState(TestStates.TWO);
+
+        //test
+        Assert.assertEquals(4, history.getTransitionCount());
+        Assert.assertEquals(3, history.size());
+        Assert.assertEquals(TestStates.ONE, history.getFromState(0));
+        Assert.assertEquals(TestStates.TWO, history.getToState(0));
+        Assert.assertEquals(TestTriggers.TRIGGER_ONE, history.getTrigger(0));
+        Assert.assertEquals(TestTriggers.TRIGGER_TWO, history.getTrigger(1));
+        Assert.assertEquals(TestStates.THREE, history.getFromState(2));
+        Assert.assertEquals(TestStates.TWO, history.getToState(2));
+        Assert.assertNull(history.getTrigger(2));
+        Assert.assertTrue(history.getNanoTime(0) <= history.getNanoTime(2));
+    }
+
+    @Test
+    public void history_starting_shouldRecordNoFromState()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = engine();
+        FsmHistory<TestStates, TestTriggers> history = new FsmHistory<>(fsm.getDefinition(), 4);
+        fsm.setHistory(history);
+        fsm.start(TestStates.ONE);
+
+        //test
+        Assert.assertEquals(1, history.size());
+        Assert.assertNull(history.getFromState(0));
+        Assert.assertEquals(TestStates.ONE, history.getToState(0));
+        Assert.assertNull(history.getTrigger(0));
+    }
+
+    @Test
+    public void trigger_rejected_shouldAttachHistoryToException()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = engine();
+        fsm.setHistory(new FsmHistory<>(fsm.getDefinition(), 4));
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+
+        //test
+        try
+        {
+            fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+            Assert.fail();
+        }
+        catch(IllegalStateException e)
+        {
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertTrue(e.getSuppressed()[0] instanceof FsmHistory.Dump);
+            Assert.assertTrue(e.getSuppressed()[0].getMessage().contains("ONE -> TWO on TRIGGER_ONE"));
+        }
+    }
+
+    @Test
+    public void reset_shouldClearHistory()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = engine();
+        FsmHistory<TestStates, TestTriggers> history = new FsmHistory<>(fsm.getDefinition(), 4);
+        fsm.setHistory(history);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+
+        //test
+        fsm.reset();
+        Assert.assertEquals(0, history.size());
+        Assert.assertSame(history, fsm.getHistory());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setHistory_otherDefinition_shouldThrow()
+    {
+        //setup
+        FsmEngine<TestStates, TestTriggers> fsm = engine();
+
+        //test
+        fsm.setHistory(new FsmHistory<>(engine().getDefinition(), 4));
+    }
+}
@@ -0,0 +1,259 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(JUnit4.class)
+public class FsmJournalTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TRIGGER_TWO;
+    }
+
+    private static final DataCodec STRING_CODEC = new DataCodec()
+    {
+        @Override
+        public byte[] encode(Object data)
+        {
+            return ((String) data).getBytes(UTF8);
+        }
+
+        @Override
+        public Object decode(byte[] bytes)
+        {
+            return new String(bytes, UTF8);
+        }
+    };
+
+    private static FsmDefinition<TestStates, TestTriggers> definition(FsmEngine.Action enterAction)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setEnterAction(enterAction);
+        definition.defineCylinder(TestStates.TWO).setRequiredDataType(String.class);
+        definition.defineCylinder(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_TWO, TestStates.TWO).setToState(TestStates.THREE);
+        return definition;
+    }
+
+    @Test
+    public void replay_shouldReturnRecordsInAppendOrder() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition(null));
+        fsm.setJournal(journal, 7);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, "data");
+        fsm.nextState(TestStates.THREE);
+        journal.close();
+
+        //test
+        final List<String> records = new ArrayList<>();
+        FsmJournal.replay(directory, new FsmJournal.Listener()
+        {
+            @Override
+            public void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data)
+            {
+                records.add(machineId+":"+fromIndex+">"+toIndex+":"+triggerIndex+":"+(data == null ? null : new String(data, UTF8)));
+            }
+        });
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("7:-1>0:-1:null", records.get(0));
+        Assert.assertEquals("7:0>1:0:data", records.get(1));
+        Assert.assertEquals("7:1>2:-1:null", records.get(2));
+    }
+
+    @Test
+    public void replay_corruptRecord_shouldStopBeforeIt() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition(null));
+        fsm.setJournal(journal, 7);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, "data");
+        fsm.nextState(TestStates.THREE);
+        journal.close();
+        //flip a byte of the second records data, the first record is 4 + 30 bytes
+        try(RandomAccessFile segment = new RandomAccessFile(directory.listFiles()[0], "rw"))
+        {
+            long offset = 34 + 4 + 30;
+            segment.seek(offset);
+            int original = segment.read();
+            segment.seek(offset);
+            segment.write(original ^ 0xFF);
+        }
+
+        //test
+        final List<Long> machineIds = new ArrayList<>();
+        FsmJournal.replay(directory, new FsmJournal.Listener()
+        {
+            @Override
+            public void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data)
+            {
+                machineIds.add(machineId);
+            }
+        });
+        Assert.assertEquals(1, machineIds.size());
+    }
+
+    @Test
+    public void replay_tornSegmentThenReopened_shouldReplayLaterSegments() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+        fsm.setJournal(journal, 1);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, "data");
+        journal.close();
+        //tear the tail, the second record starts after the first 4 + 30 bytes
+        try(RandomAccessFile segment = new RandomAccessFile(directory.listFiles()[0], "rw"))
+        {
+            segment.seek(34 + 4 + 30);
+            segment.write(0);
+        }
+        journal = new FsmJournal(directory, STRING_CODEC);
+        FsmEngine<TestStates, TestTriggers> restarted = new FsmEngine<>(definition);
+        restarted.setJournal(journal, 2);
+        restarted.start(TestStates.THREE);
+        journal.close();
+
+        //test
+        Map<Long, FsmEngine<TestStates, TestTriggers>> recovered = FsmJournal.recover(directory, definition, STRING_CODEC);
+        Assert.assertEquals(TestStates.ONE, recovered.get(1L).getCurrentState());
+        Assert.assertEquals(TestStates.THREE, recovered.get(2L).getCurrentState());
+    }
+
+    @Test
+    public void replay_indexesAboveShortRange_shouldReadBackUnsigned() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC);
+        journal.append(3, -1, 40000, 65534, null);
+        journal.close();
+
+        //test
+        final List<String> records = new ArrayList<>();
+        FsmJournal.replay(directory, new FsmJournal.Listener()
+        {
+            @Override
+            public void onRecord(long machineId, int fromIndex, int toIndex, int triggerIndex, long timestampMillis, byte[] data)
+            {
+                records.add(fromIndex+">"+toIndex+":"+triggerIndex);
+            }
+        });
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("-1>40000:65534", records.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void append_indexOutOfRange_shouldThrow() throws IOException
+    {
+        //setup
+        FsmJournal journal = new FsmJournal(tempFolder.newFolder(), STRING_CODEC);
+
+        //test
+        try
+        {
+            journal.append(3, -1, 65535, -1, null);
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void recover_shouldRestoreLatestStatesWithoutRunningActions() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        //small segments so records span several files
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC, 128, 1);
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        for(int machineId = 0; machineId < 10; machineId++)
+        {
+            FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+            fsm.setJournal(journal, machineId);
+            fsm.start(TestStates.ONE);
+            if(machineId % 2 == 0)
+                fsm.trigger(TestTriggers.TRIGGER_ONE, "machine"+machineId);
+        }
+        journal.close();
+
+        //test
+        FsmEngine.Action enterAction = mock(FsmEngine.Action.class);
+        Map<Long, FsmEngine<TestStates, TestTriggers>> recovered = FsmJournal.recover(directory, definition(enterAction), STRING_CODEC);
+        Assert.assertEquals(10, recovered.size());
+        Assert.assertEquals(TestStates.TWO, recovered.get(4L).getCurrentState());
+        Assert.assertEquals(TestStates.ONE, recovered.get(5L).getCurrentState());
+        verifyZeroInteractions(enterAction);
+
+        FsmEngine.Observer<TestStates> observer = mock(FsmEngine.Observer.class);
+        recovered.get(4L).addObserver(observer);
+        verify(observer).currentState(TestStates.TWO, "machine4");
+    }
+
+    @Test
+    public void newJournal_existingSegments_shouldAppendAfterThem() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        FsmJournal journal = new FsmJournal(directory, STRING_CODEC);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+        fsm.setJournal(journal, 1);
+        fsm.start(TestStates.ONE);
+        journal.close();
+
+        //test
+        FsmEngine<TestStates, TestTriggers> restored = FsmJournal.recover(directory, definition, STRING_CODEC).get(1L);
+        journal = new FsmJournal(directory, STRING_CODEC);
+        restored.setJournal(journal, 1);
+        restored.nextState(TestStates.THREE);
+        journal.close();
+        Assert.assertEquals(TestStates.THREE, FsmJournal.recover(directory, definition, STRING_CODEC).get(1L).getCurrentState());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void restore_undefinedState_shouldThrow()
+    {
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE);
+        fsm.restore(TestStates.TWO, null);
+    }
+}
@@ -0,0 +1,100 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class FsmMetricsTest
+{
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TRIGGER_TWO;
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> definition()
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_TWO, TestStates.TWO).setToState(TestStates.ONE);
+        return definition;
+    }
+
+    @Test
+    public void trigger_metricsEnabled_shouldCountEntriesAndTriggerOutcomes()
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition();
+        FsmMetrics<TestStates, TestTriggers> metrics = new FsmMetrics<>(definition, "test");
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+        fsm.setMetrics(metrics);
+        fsm.start(TestStates.ONE);
+
+        //test
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        fsm.tryTrigger(TestTriggers.TRIGGER_ONE, null);
+        fsm.trigger(TestTriggers.TRIGGER_TWO, null);
+        Assert.assertEquals(2, metrics.getEntryCount(TestStates.ONE));
+        Assert.assertEquals(1, metrics.getEntryCount(TestStates.TWO));
+        Assert.assertEquals(1, metrics.getAcceptedCount(TestTriggers.TRIGGER_ONE));
+        Assert.assertEquals(1, metrics.getRejectedCount(TestTriggers.TRIGGER_ONE));
+        Assert.assertEquals(1, metrics.getAcceptedCount(TestTriggers.TRIGGER_TWO));
+
+        long dwellSamples = 0;
+        for(long bucket : metrics.getDwellHistogram(TestStates.ONE))
+            dwellSamples += bucket;
+        Assert.assertEquals(1, dwellSamples);
+    }
+
+    @Test
+    public void writePrometheus_shouldExportCountersAndHistograms() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition();
+        FsmMetrics<TestStates, TestTriggers> metrics = new FsmMetrics<>(definition, "test");
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+        fsm.setMetrics(metrics);
+        fsm.start(TestStates.ONE);
+        fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+
+        //test
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        String exported = out.toString();
+        Assert.assertTrue(exported.contains("fsm_state_entries_total{machine=\"test\",state=\"TWO\"} 1\n"));
+        Assert.assertTrue(exported.contains("fsm_trigger_total{machine=\"test\",trigger=\"TRIGGER_ONE\",result=\"accepted\"} 1\n"));
+        Assert.assertTrue(exported.contains("fsm_state_dwell_seconds_count{machine=\"test\",state=\"ONE\"} 1\n"));
+    }
+
+    @Test
+    public void recordDwell_negativeDuration_shouldRecordAsZero() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition();
+        FsmMetrics<TestStates, TestTriggers> metrics = new FsmMetrics<>(definition, "test");
+
+        //test
+        metrics.recordDwell(definition.cylinderFor(TestStates.ONE), -5);
+        Assert.assertEquals(1, metrics.getDwellHistogram(TestStates.ONE)[0]);
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        Assert.assertTrue(out.toString().contains("fsm_state_dwell_seconds_sum{machine=\"test\",state=\"ONE\"} 0.0\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMetrics_differentDefinition_shouldThrow()
+    {
+        FsmMetrics<TestStates, TestTriggers> metrics = new FsmMetrics<>(definition(), "test");
+        new FsmEngine<>(definition()).setMetrics(metrics);
+    }
+}
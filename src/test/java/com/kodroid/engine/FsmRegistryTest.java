@@ -0,0 +1,234 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class FsmRegistryTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE, TRIGGER_TWO;
+    }
+
+    private static final DataCodec STRING_CODEC = new DataCodec()
+    {
+        @Override
+        public byte[] encode(Object data)
+        {
+            return ((String) data).getBytes(UTF8);
+        }
+
+        @Override
+        public Object decode(byte[] bytes)
+        {
+            return new String(bytes, UTF8);
+        }
+    };
+
+    private static FsmDefinition<TestStates, TestTriggers> definition(FsmEngine.Action enterAction)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO).setRequiredDataType(String.class).setEnterAction(enterAction);
+        definition.defineCylinder(TestStates.THREE);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_TWO, TestStates.TWO).setToState(TestStates.THREE);
+        return definition;
+    }
+
+    @Test
+    public void trigger_machinePagedOut_shouldFaultInWithoutRunningActions() throws IOException
+    {
+        //setup
+        FsmEngine.Action mockEnterAction = Mockito.mock(FsmEngine.Action.class);
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition(mockEnterAction), 2, tempFolder.newFolder(), STRING_CODEC);
+        registry.start(1, TestStates.ONE, null);
+        registry.trigger(1, TestTriggers.TRIGGER_ONE, "data");
+        registry.start(2, TestStates.ONE, null);
+        registry.start(3, TestStates.ONE, null);
+
+        //test
+        Assert.assertEquals(2, registry.getHotCount());
+        Assert.assertEquals(1, registry.getColdCount());
+        Mockito.verify(mockEnterAction, Mockito.times(1)).run();
+        FsmEngine<TestStates, TestTriggers> faulted = registry.get(1);
+        Assert.assertEquals(TestStates.TWO, faulted.getCurrentState());
+        Assert.assertEquals("data", faulted.getCurrentCylindersData());
+        Mockito.verify(mockEnterAction, Mockito.times(1)).run();
+        registry.trigger(1, TestTriggers.TRIGGER_TWO, null);
+        Assert.assertEquals(TestStates.THREE, registry.get(1).getCurrentState());
+        Assert.assertEquals(3, registry.getHotCount() + registry.getColdCount());
+        registry.close();
+    }
+
+    @Test
+    public void trigger_manyMachinesChurningThroughSmallCache_shouldKeepEveryState() throws IOException
+    {
+        //setup
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition(null), 16, tempFolder.newFolder(), STRING_CODEC);
+        for(long key = 0; key < 5000; key++)
+            registry.start(key * 7919, TestStates.ONE, null);
+        for(long key = 0; key < 5000; key += 2)
+            registry.trigger(key * 7919, TestTriggers.TRIGGER_ONE, "m"+key);
+        for(long key = 0; key < 5000; key += 4)
+            Assert.assertTrue(registry.remove(key * 7919));
+
+        //test
+        Assert.assertEquals(3750, registry.getHotCount() + registry.getColdCount());
+        for(long key = 0; key < 5000; key++)
+        {
+            FsmEngine<TestStates, TestTriggers> engine = registry.get(key * 7919);
+            if(key % 4 == 0)
+            {
+                Assert.assertNull(engine);
+            }
+            else
+            {
+                Assert.assertEquals(key % 2 == 0 ? TestStates.TWO : TestStates.ONE, engine.getCurrentState());
+                Assert.assertEquals(key % 2 == 0 ? "m"+key : null, engine.getCurrentCylindersData());
+            }
+        }
+        registry.close();
+    }
+
+    @Test
+    public void start_eldestDataTooLargeToPageOut_shouldKeepItLiveAndPageOutOthers() throws IOException
+    {
+        //setup
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition(null), 1, tempFolder.newFolder(), STRING_CODEC, 4, null);
+        registry.start(1, TestStates.ONE, null);
+        registry.trigger(1, TestTriggers.TRIGGER_ONE, "too long to page out");
+        registry.start(2, TestStates.ONE, null);
+        registry.start(3, TestStates.ONE, null);
+
+        //test, 1 stays live alongside the just started 3
+        Assert.assertEquals(2, registry.getHotCount());
+        Assert.assertEquals(1, registry.getColdCount());
+        Assert.assertEquals(DispatchResult.ACCEPTED, registry.tryTrigger(2, TestTriggers.TRIGGER_ONE, "ok"));
+        Assert.assertEquals("too long to page out", registry.get(1).getCurrentCylindersData());
+        Assert.assertEquals("ok", registry.get(2).getCurrentCylindersData());
+        Assert.assertEquals(TestStates.ONE, registry.get(3).getCurrentState());
+        Assert.assertEquals(3, registry.getHotCount() + registry.getColdCount());
+        registry.close();
+    }
+
+    @Test
+    public void get_configurerThrowsWhileFaultingIn_shouldKeepMachinePagedOut() throws IOException
+    {
+        //setup
+        final boolean[] failing = {false};
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition(null), 1, tempFolder.newFolder(), STRING_CODEC, 64, new FsmRegistry.EngineConfigurer<TestStates, TestTriggers>()
+        {
+            @Override
+            public void configure(long key, FsmEngine<TestStates, TestTriggers> engine)
+            {
+                if(failing[0])
+                    throw new IllegalStateException("configure failed");
+            }
+        });
+        registry.start(1, TestStates.ONE, null);
+        registry.trigger(1, TestTriggers.TRIGGER_ONE, "data");
+        registry.start(2, TestStates.ONE, null);
+
+        //test
+        failing[0] = true;
+        try
+        {
+            registry.get(1);
+            Assert.fail();
+        }
+        catch(IllegalStateException e)
+        {
+            Assert.assertEquals("configure failed", e.getMessage());
+        }
+        Assert.assertTrue(registry.contains(1));
+        failing[0] = false;
+        Assert.assertEquals("data", registry.get(1).getCurrentCylindersData());
+        registry.close();
+    }
+
+    @Test
+    public void close_liveMachineWithTimeout_shouldCancelTimeout() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setTimeout(1, TimeUnit.SECONDS, TestTriggers.TRIGGER_ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.TWO);
+        final TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition, 1, tempFolder.newFolder(), STRING_CODEC, 64, new FsmRegistry.EngineConfigurer<TestStates, TestTriggers>()
+        {
+            @Override
+            public void configure(long key, FsmEngine<TestStates, TestTriggers> engine)
+            {
+                engine.setTimingWheel(wheel);
+            }
+        });
+        registry.start(1, TestStates.ONE, null);
+
+        //test
+        Assert.assertEquals(1, wheel.getScheduledCount());
+        registry.close();
+        Assert.assertEquals(0, wheel.getScheduledCount());
+    }
+
+    @Test
+    public void get_registriesSharingDirectory_shouldKeepSeparateColdStores() throws IOException
+    {
+        //setup
+        File directory = tempFolder.newFolder();
+        FsmRegistry<TestStates, TestTriggers> first = new FsmRegistry<>(definition(null), 1, directory, STRING_CODEC);
+        first.start(1, TestStates.ONE, null);
+        first.trigger(1, TestTriggers.TRIGGER_ONE, "first");
+        first.start(2, TestStates.ONE, null);
+        FsmRegistry<TestStates, TestTriggers> second = new FsmRegistry<>(definition(null), 1, directory, STRING_CODEC);
+        second.start(1, TestStates.ONE, null);
+        second.start(2, TestStates.ONE, null);
+
+        //test
+        Assert.assertEquals("first", first.get(1).getCurrentCylindersData());
+        Assert.assertEquals(TestStates.ONE, second.get(1).getCurrentState());
+        first.close();
+        Assert.assertEquals(TestStates.ONE, second.get(2).getCurrentState());
+        Assert.assertEquals(TestStates.ONE, second.get(1).getCurrentState());
+        second.close();
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_noCodecForDefinitionWithData_shouldThrow() throws IOException
+    {
+        new FsmRegistry<>(definition(null), 1, tempFolder.newFolder(), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trigger_unknownMachine_shouldThrow() throws IOException
+    {
+        //setup
+        FsmRegistry<TestStates, TestTriggers> registry = new FsmRegistry<>(definition(null), 2, tempFolder.newFolder(), STRING_CODEC);
+
+        //test
+        registry.trigger(1, TestTriggers.TRIGGER_ONE, "data");
+    }
+}
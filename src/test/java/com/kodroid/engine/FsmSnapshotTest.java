@@ -0,0 +1,167 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(JUnit4.class)
+public class FsmSnapshotTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    enum TestStates
+    {
+        ONE, TWO, THREE;
+    }
+
+    enum TestTriggers
+    {
+        TRIGGER_ONE;
+    }
+
+    private static final DataCodec STRING_CODEC = new DataCodec()
+    {
+        @Override
+        public byte[] encode(Object data)
+        {
+            return ((String) data).getBytes(UTF8);
+        }
+
+        @Override
+        public Object decode(byte[] bytes)
+        {
+            return new String(bytes, UTF8);
+        }
+    };
+
+    private static FsmDefinition<TestStates, TestTriggers> definition(FsmEngine.Action enterAction)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE).setEnterAction(enterAction);
+        definition.defineCylinder(TestStates.TWO).setEnterAction(enterAction).setRequiredDataType(String.class);
+        definition.defineCylinder(TestStates.THREE).setEnterAction(enterAction);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.ONE).setToState(TestStates.THREE);
+        return definition;
+    }
+
+    @Test
+    public void read_engines_shouldRestoreStatesAndDataWithoutRunningActions() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        engines.add(new FsmEngine<>(definition).start(TestStates.ONE));
+        engines.add(new FsmEngine<>(definition).start(TestStates.TWO, "two"));
+        engines.add(new FsmEngine<>(definition));
+        engines.add(new FsmEngine<>(definition).start(TestStates.THREE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshot.write(Channels.newChannel(out), definition, engines, STRING_CODEC);
+
+        //test
+        FsmEngine.Action enterAction = mock(FsmEngine.Action.class);
+        List<FsmEngine<TestStates, TestTriggers>> restored = FsmSnapshot.read(
+                Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), definition(enterAction), STRING_CODEC);
+        Assert.assertEquals(4, restored.size());
+        Assert.assertEquals(TestStates.ONE, restored.get(0).getCurrentState());
+        Assert.assertEquals(TestStates.TWO, restored.get(1).getCurrentState());
+        Assert.assertEquals("two", restored.get(1).getCurrentCylindersData());
+        Assert.assertNull(restored.get(2).getCurrentState());
+        Assert.assertEquals(TestStates.THREE, restored.get(3).getCurrentState());
+        verifyZeroInteractions(enterAction);
+
+        restored.get(0).trigger(TestTriggers.TRIGGER_ONE, null);
+        Assert.assertEquals(TestStates.THREE, restored.get(0).getCurrentState());
+    }
+
+    @Test
+    public void write_stateOnlyEngines_shouldCostOneBytePerMachine() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        for(int i = 0; i < 1000; i++)
+            engines.add(new FsmEngine<>(definition).start(TestStates.ONE));
+
+        //test
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshot.write(Channels.newChannel(out), definition, engines, null);
+        Assert.assertTrue(out.size() < 1000 + 32);
+    }
+
+    @Test
+    public void read_bulkEngine_shouldRestoreColumn() throws IOException
+    {
+        //setup
+        FsmBulkEngine<TestStates, TestTriggers> engine = new FsmBulkEngine<>(definition(null), 3, true);
+        engine.start(0, TestStates.ONE);
+        engine.start(2, TestStates.THREE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshot.write(Channels.newChannel(out), engine);
+
+        //test
+        FsmEngine.Action enterAction = mock(FsmEngine.Action.class);
+        FsmBulkEngine<TestStates, TestTriggers> restored = new FsmBulkEngine<>(definition(enterAction), 3);
+        FsmSnapshot.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), restored);
+        Assert.assertEquals(TestStates.ONE, restored.getState(0));
+        Assert.assertNull(restored.getState(1));
+        Assert.assertEquals(TestStates.THREE, restored.getState(2));
+        verifyZeroInteractions(enterAction);
+    }
+
+    @Test(expected = IOException.class)
+    public void read_corruptDataLength_shouldThrowWithoutAllocatingIt() throws IOException
+    {
+        read_corruptDataLength(Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IOException.class)
+    public void read_negativeDataLength_shouldThrow() throws IOException
+    {
+        read_corruptDataLength(-1);
+    }
+
+    private void read_corruptDataLength(int length) throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        engines.add(new FsmEngine<>(definition).start(TestStates.TWO, "two"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshot.write(Channels.newChannel(out), definition, engines, STRING_CODEC);
+        //header, 1 byte state column, then the machine index and length of its data record
+        ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+        bytes.putInt(17 + 1 + 4, length);
+
+        //test
+        FsmSnapshot.read(Channels.newChannel(new ByteArrayInputStream(bytes.array())), definition, STRING_CODEC);
+    }
+
+    @Test(expected = IOException.class)
+    public void read_differentDefinition_shouldThrow() throws IOException
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = definition(null);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        engines.add(new FsmEngine<>(definition).start(TestStates.ONE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshot.write(Channels.newChannel(out), definition, engines, null);
+
+        //test
+        FsmDefinition<String, TestTriggers> other = new FsmDefinition<>();
+        other.defineCylinder("ONE");
+        FsmSnapshot.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), other, null);
+    }
+}
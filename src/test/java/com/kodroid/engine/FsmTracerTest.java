@@ -0,0 +1,107 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class FsmTracerTest
+{
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        GO, UNDEFINED;
+    }
+
+    /**
+     * Records events as strings
+     */
+    private static class RecordingTracer extends FsmTracer<TestStates, TestTriggers>
+    {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        protected void stateEntered(TestStates state, TestStates previousState, TestTriggers triggerEnum)
+        {
+            events.add("entered "+state+" from "+previousState+" via "+triggerEnum);
+        }
+
+        @Override
+        protected void stateExited(TestStates state, long dwellNanos)
+        {
+            events.add("exited "+state);
+        }
+
+        @Override
+        protected void triggerRejected(TestStates state, TestTriggers triggerEnum, DispatchResult reason)
+        {
+            events.add("rejected "+triggerEnum+" in "+state+" "+reason);
+        }
+
+        @Override
+        protected void actionRun(ActionType type, TestStates state, TestTriggers triggerEnum, long durationNanos)
+        {
+            events.add(type+" action "+state);
+        }
+    }
+
+    private static FsmEngine<TestStates, TestTriggers> newEngine(FsmTracer<TestStates, TestTriggers> tracer)
+    {
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>();
+        fsm.defineCylinder(TestStates.ONE).setExitAction(Mockito.mock(FsmEngine.Action.class));
+        fsm.defineCylinder(TestStates.TWO).setEnterAction(Mockito.mock(FsmEngine.Action.class));
+        fsm.defineTrigger(TestTriggers.GO, TestStates.ONE).setToState(TestStates.TWO).setAction(Mockito.mock(FsmEngine.Action.class));
+        fsm.defineTrigger(TestTriggers.UNDEFINED, TestStates.TWO);
+        fsm.setTracer(tracer);
+        return fsm;
+    }
+
+    @Test
+    public void trigger_tracerEnabled_shouldReportAllEventTypes()
+    {
+        //setup
+        RecordingTracer tracer = new RecordingTracer();
+        FsmEngine<TestStates, TestTriggers> fsm = newEngine(tracer);
+        fsm.start(TestStates.ONE);
+
+        //test
+        fsm.trigger(TestTriggers.GO, null);
+        fsm.tryTrigger(TestTriggers.GO, null);
+        Assert.assertEquals(7, tracer.events.size());
+        Assert.assertEquals("entered ONE from null via null", tracer.events.get(0));
+        Assert.assertEquals("TRANSITION action ONE", tracer.events.get(1));
+        Assert.assertEquals("EXIT action ONE", tracer.events.get(2));
+        Assert.assertEquals("exited ONE", tracer.events.get(3));
+        Assert.assertEquals("entered TWO from ONE via GO", tracer.events.get(4));
+        Assert.assertEquals("ENTER action TWO", tracer.events.get(5));
+        Assert.assertEquals("rejected GO in TWO NO_TRANSITION_FOR_STATE", tracer.events.get(6));
+    }
+
+    @Test
+    public void trigger_belowThresholdsOrDisabled_shouldNotReport()
+    {
+        //setup
+        RecordingTracer tracer = new RecordingTracer();
+        tracer.setThreshold(FsmTracer.EventType.ACTION, 1, TimeUnit.HOURS)
+                .setThreshold(FsmTracer.EventType.STATE_EXITED, 1, TimeUnit.HOURS)
+                .setEnabled(FsmTracer.EventType.STATE_ENTERED, false);
+        FsmEngine<TestStates, TestTriggers> fsm = newEngine(tracer);
+        fsm.start(TestStates.ONE);
+
+        //test
+        fsm.trigger(TestTriggers.GO, null);
+        fsm.tryTrigger(TestTriggers.GO, null);
+        Assert.assertEquals(1, tracer.events.size());
+        Assert.assertEquals("rejected GO in TWO NO_TRANSITION_FOR_STATE", tracer.events.get(0));
+    }
+}
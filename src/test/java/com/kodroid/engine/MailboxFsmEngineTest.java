@@ -0,0 +1,142 @@
+package com.kodroid.engine;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class MailboxFsmEngineTest
+{
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        TOGGLE, TRIGGER_ONE;
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> toggleDefinition()
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.TWO).setToState(TestStates.ONE);
+        definition.defineTrigger(TestTriggers.TRIGGER_ONE, TestStates.TWO);
+        return definition;
+    }
+
+    @Test
+    public void trigger_enqueuedInOrder_futuresShouldCompleteWithEachResultingState() throws Exception
+    {
+        //setup
+        MailboxFsmEngine<TestStates, TestTriggers> fsm = new MailboxFsmEngine<>(toggleDefinition(), executor);
+        fsm.start(TestStates.ONE, null);
+
+        //test
+        List<Future<TestStates>> results = new ArrayList<>();
+        for(int i = 0; i < 200; i++)
+            results.add(fsm.trigger(TestTriggers.TOGGLE, null));
+        for(int i = 0; i < results.size(); i++)
+            Assert.assertEquals(i % 2 == 0 ? TestStates.TWO : TestStates.ONE, results.get(i).get());
+    }
+
+    @Test
+    public void trigger_invalidForCurrentState_futureShouldFailAndMailboxContinue() throws Exception
+    {
+        //setup
+        MailboxFsmEngine<TestStates, TestTriggers> fsm = new MailboxFsmEngine<>(toggleDefinition(), executor);
+        fsm.start(TestStates.ONE, null);
+
+        //test
+        Future<TestStates> invalid = fsm.trigger(TestTriggers.TRIGGER_ONE, null);
+        Future<TestStates> valid = fsm.trigger(TestTriggers.TOGGLE, null);
+        try
+        {
+            invalid.get();
+            Assert.fail();
+        }
+        catch(ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(TestStates.TWO, valid.get());
+    }
+
+    @Test
+    public void trigger_executorShutdown_futureShouldFailAndMailboxRecover() throws Exception
+    {
+        //setup
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        MailboxFsmEngine<TestStates, TestTriggers> fsm = new MailboxFsmEngine<>(toggleDefinition(), stopped);
+
+        //test
+        Future<TestStates> rejected = fsm.start(TestStates.ONE, null);
+        try
+        {
+            rejected.get();
+            Assert.fail();
+        }
+        catch(ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        //next call is scheduled again rather than left queued forever
+        Future<TestStates> alsoRejected = fsm.trigger(TestTriggers.TOGGLE, null);
+        Assert.assertTrue(alsoRejected.isDone());
+    }
+
+    @Test
+    public void trigger_listenerAdded_shouldBeNotifiedOnCompletion() throws Exception
+    {
+        //setup
+        MailboxFsmEngine<TestStates, TestTriggers> fsm = new MailboxFsmEngine<>(toggleDefinition(), executor);
+        fsm.start(TestStates.ONE, null);
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        //test
+        final MailboxFsmEngine.MailboxFuture<TestStates> result = fsm.trigger(TestTriggers.TOGGLE, null);
+        final TestStates[] notified = new TestStates[1];
+        result.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    notified[0] = result.get();
+                }
+                catch(Exception e)
+                {
+                    throw new AssertionError(e);
+                }
+                completed.countDown();
+            }
+        });
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(TestStates.TWO, notified[0]);
+    }
+}
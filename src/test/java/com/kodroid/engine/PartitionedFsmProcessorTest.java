@@ -0,0 +1,280 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class PartitionedFsmProcessorTest
+{
+    enum TestStates
+    {
+        ONE, TWO;
+    }
+
+    enum TestTriggers
+    {
+        TOGGLE, INVALID;
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> definition()
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.ONE);
+        definition.defineCylinder(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.ONE).setToState(TestStates.TWO);
+        definition.defineTrigger(TestTriggers.TOGGLE, TestStates.TWO).setToState(TestStates.ONE);
+        definition.defineTrigger(TestTriggers.INVALID, TestStates.TWO);
+        return definition.freeze();
+    }
+
+    @Test
+    public void submit_manyKeys_shouldApplyEventsInOrderPerKey() throws InterruptedException
+    {
+        //setup
+        final FsmDefinition<TestStates, TestTriggers> definition = definition();
+        final Map<Integer, FsmEngine<TestStates, TestTriggers>> engines = new ConcurrentHashMap<>();
+        final AtomicInteger errors = new AtomicInteger();
+        PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(4, 16,
+                new PartitionedFsmProcessor.EngineFactory<Integer, TestStates, TestTriggers>()
+                {
+                    @Override
+                    public FsmEngine<TestStates, TestTriggers> newEngine(Integer key)
+                    {
+                        FsmEngine<TestStates, TestTriggers> engine = new FsmEngine<>(definition).start(TestStates.ONE);
+                        engines.put(key, engine);
+                        return engine;
+                    }
+                },
+                new PartitionedFsmProcessor.ErrorHandler<Integer, TestTriggers>()
+                {
+                    @Override
+                    public void onError(Integer key, TestTriggers triggerEnum, Object optionalInputData, RuntimeException error)
+                    {
+                        errors.incrementAndGet();
+                    }
+                }).start();
+
+        //test, key k is toggled 1 + k % 3 times so its final state depends on every event being applied
+        for(int round = 0; round < 3; round++)
+            for(int key = 0; key < 1000; key++)
+                if(round <= key % 3)
+                    processor.submit(key, TestTriggers.TOGGLE, null);
+        processor.submit(1, TestTriggers.INVALID, null);
+        processor.shutdown();
+        Assert.assertTrue(processor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, errors.get());
+        for(int key = 0; key < 1000; key++)
+            Assert.assertEquals(key % 3 == 1 ? TestStates.ONE : TestStates.TWO, engines.get(key).getCurrentState());
+    }
+
+    @Test
+    public void submit_errorHandlerThrows_shouldKeepApplyingEvents() throws InterruptedException
+    {
+        //setup
+        final FsmDefinition<TestStates, TestTriggers> definition = definition();
+        final Map<Integer, FsmEngine<TestStates, TestTriggers>> engines = new ConcurrentHashMap<>();
+        PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(1, 2,
+                new PartitionedFsmProcessor.EngineFactory<Integer, TestStates, TestTriggers>()
+                {
+                    @Override
+                    public FsmEngine<TestStates, TestTriggers> newEngine(Integer key)
+                    {
+                        FsmEngine<TestStates, TestTriggers> engine = new FsmEngine<>(definition).start(TestStates.ONE);
+                        engines.put(key, engine);
+                        return engine;
+                    }
+                },
+                new PartitionedFsmProcessor.ErrorHandler<Integer, TestTriggers>()
+                {
+                    @Override
+                    public void onError(Integer key, TestTriggers triggerEnum, Object optionalInputData, RuntimeException error)
+                    {
+                        throw new IllegalStateException("handler failed");
+                    }
+                }, new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable);
+                        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+                        {
+                            @Override
+                            public void uncaughtException(Thread t, Throwable e)
+                            {
+                                //expected
+                            }
+                        });
+                        return thread;
+                    }
+                }).start();
+
+        //test, more events than the queue holds after the handler has thrown
+        for(int i = 0; i < 10; i++)
+            processor.submit(1, TestTriggers.INVALID, null);
+        processor.submit(1, TestTriggers.TOGGLE, null);
+        processor.shutdown();
+        Assert.assertTrue(processor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(TestStates.TWO, engines.get(1).getCurrentState());
+    }
+
+    @Test
+    public void submit_partitionWorkerDied_shouldThrowInsteadOfBlocking() throws InterruptedException
+    {
+        //setup
+        PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(1, 2,
+                new PartitionedFsmProcessor.EngineFactory<Integer, TestStates, TestTriggers>()
+                {
+                    @Override
+                    public FsmEngine<TestStates, TestTriggers> newEngine(Integer key)
+                    {
+                        throw new AssertionError("fatal");
+                    }
+                }, null, new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable);
+                        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+                        {
+                            @Override
+                            public void uncaughtException(Thread t, Throwable e)
+                            {
+                                //expected
+                            }
+                        });
+                        return thread;
+                    }
+                }).start();
+
+        //test
+        try
+        {
+            for(int i = 0; i < 10; i++)
+                processor.submit(1, TestTriggers.TOGGLE, null);
+            Assert.fail();
+        }
+        catch(IllegalStateException e)
+        {
+            Assert.assertEquals("fatal", e.getCause().getMessage());
+        }
+        processor.shutdown();
+        Assert.assertTrue(processor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void submit_racingShutdown_shouldApplyEveryAcceptedEvent() throws InterruptedException
+    {
+        //setup, every event is rejected by the engine so the error handler counts applied events
+        final FsmDefinition<TestStates, TestTriggers> definition = definition();
+        final AtomicInteger applied = new AtomicInteger();
+        final AtomicInteger accepted = new AtomicInteger();
+        final PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(2, 4,
+                new PartitionedFsmProcessor.EngineFactory<Integer, TestStates, TestTriggers>()
+                {
+                    @Override
+                    public FsmEngine<TestStates, TestTriggers> newEngine(Integer key)
+                    {
+                        return new FsmEngine<>(definition).start(TestStates.ONE);
+                    }
+                },
+                new PartitionedFsmProcessor.ErrorHandler<Integer, TestTriggers>()
+                {
+                    @Override
+                    public void onError(Integer key, TestTriggers triggerEnum, Object optionalInputData, RuntimeException error)
+                    {
+                        applied.incrementAndGet();
+                    }
+                }).start();
+        Thread[] producers = new Thread[4];
+        for(int i = 0; i < producers.length; i++)
+        {
+            final int key = i;
+            producers[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while(true)
+                        {
+                            processor.submit(key, TestTriggers.INVALID, null);
+                            accepted.incrementAndGet();
+                        }
+                    }
+                    catch(IllegalStateException e)
+                    {
+                        //shut down
+                    }
+                    catch(InterruptedException e)
+                    {
+                        //exit
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        //test
+        Thread.sleep(20);
+        processor.shutdown();
+        for(Thread producer : producers)
+            producer.join(10000);
+        Assert.assertTrue(processor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(accepted.get(), applied.get());
+    }
+
+    @Test
+    public void evict_thenSubmit_shouldApplyToNewEngine() throws InterruptedException
+    {
+        //setup
+        final FsmDefinition<TestStates, TestTriggers> definition = definition();
+        final AtomicInteger created = new AtomicInteger();
+        final Map<Integer, FsmEngine<TestStates, TestTriggers>> engines = new ConcurrentHashMap<>();
+        PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(1, 4,
+                new PartitionedFsmProcessor.EngineFactory<Integer, TestStates, TestTriggers>()
+                {
+                    @Override
+                    public FsmEngine<TestStates, TestTriggers> newEngine(Integer key)
+                    {
+                        created.incrementAndGet();
+                        FsmEngine<TestStates, TestTriggers> engine = new FsmEngine<>(definition).start(TestStates.ONE);
+                        engines.put(key, engine);
+                        return engine;
+                    }
+                }, null).start();
+
+        //test
+        processor.submit(1, TestTriggers.TOGGLE, null);
+        processor.submit(1, TestTriggers.TOGGLE, null);
+        processor.evict(1);
+        processor.submit(1, TestTriggers.TOGGLE, null);
+        processor.shutdown();
+        Assert.assertTrue(processor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, created.get());
+        Assert.assertEquals(TestStates.TWO, engines.get(1).getCurrentState());
+    }
+
+    @Test
+    public void offer_partitionFull_shouldReturnFalse()
+    {
+        //setup, not started so nothing is consumed
+        PartitionedFsmProcessor<Integer, TestStates, TestTriggers> processor = new PartitionedFsmProcessor<>(1, 2, null, null);
+
+        //test
+        Assert.assertTrue(processor.offer(1, TestTriggers.TOGGLE, null));
+        Assert.assertTrue(processor.offer(2, TestTriggers.TOGGLE, null));
+        Assert.assertFalse(processor.offer(3, TestTriggers.TOGGLE, null));
+    }
+}
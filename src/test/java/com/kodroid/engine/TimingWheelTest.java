@@ -0,0 +1,174 @@
+package com.kodroid.engine;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class TimingWheelTest
+{
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    enum TestStates
+    {
+        IDLE, WAITING, TIMED_OUT;
+    }
+
+    enum TestTriggers
+    {
+        REQUEST, RESPONSE, TIMEOUT;
+    }
+
+    private static FsmDefinition<TestStates, TestTriggers> definition(long timeoutMillis)
+    {
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.IDLE);
+        definition.defineCylinder(TestStates.WAITING).setTimeout(timeoutMillis, TimeUnit.MILLISECONDS, TestTriggers.TIMEOUT);
+        definition.defineCylinder(TestStates.TIMED_OUT);
+        definition.defineTrigger(TestTriggers.REQUEST, TestStates.IDLE).setToState(TestStates.WAITING);
+        definition.defineTrigger(TestTriggers.RESPONSE, TestStates.WAITING).setToState(TestStates.IDLE);
+        definition.defineTrigger(TestTriggers.TIMEOUT, TestStates.WAITING).setToState(TestStates.TIMED_OUT);
+        return definition;
+    }
+
+    @Test
+    public void advance_stateTimeoutExpired_shouldFireTimeoutTrigger()
+    {
+        //setup
+        long start = System.nanoTime();
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition(10));
+        fsm.setTimingWheel(wheel);
+        fsm.start(TestStates.IDLE);
+        fsm.trigger(TestTriggers.REQUEST, null);
+
+        //test
+        Assert.assertEquals(0, wheel.advanceTo(start + 5 * MILLI));
+        Assert.assertEquals(TestStates.WAITING, fsm.getCurrentState());
+        Assert.assertEquals(1, wheel.advanceTo(start + 200 * MILLI));
+        Assert.assertEquals(TestStates.TIMED_OUT, fsm.getCurrentState());
+        Assert.assertEquals(0, wheel.getScheduledCount());
+    }
+
+    @Test
+    public void advance_stateLeftBeforeTimeout_shouldNotFire()
+    {
+        //setup
+        long start = System.nanoTime();
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition(10));
+        fsm.setTimingWheel(wheel);
+        fsm.start(TestStates.IDLE);
+        fsm.trigger(TestTriggers.REQUEST, null);
+
+        //test
+        fsm.trigger(TestTriggers.RESPONSE, null);
+        Assert.assertEquals(0, wheel.getScheduledCount());
+        Assert.assertEquals(0, wheel.advanceTo(start + 100 * MILLI));
+        Assert.assertEquals(TestStates.IDLE, fsm.getCurrentState());
+    }
+
+    @Test
+    public void advance_sharedByManyEngines_shouldFireOnlyExpired()
+    {
+        //setup
+        long start = System.nanoTime();
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 16);
+        FsmDefinition<TestStates, TestTriggers> definition = definition(50);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        for(int i = 0; i < 100; i++)
+        {
+            FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+            fsm.setTimingWheel(wheel);
+            fsm.start(TestStates.IDLE);
+            fsm.trigger(TestTriggers.REQUEST, null);
+            engines.add(fsm);
+        }
+        for(int i = 0; i < 100; i += 2)
+            engines.get(i).trigger(TestTriggers.RESPONSE, null);
+
+        //test, timeout spans several revolutions of the 16 slot wheel
+        Assert.assertEquals(0, wheel.advanceTo(start + 40 * MILLI));
+        Assert.assertEquals(50, wheel.advanceTo(start + 200 * MILLI));
+        for(int i = 0; i < 100; i++)
+            Assert.assertEquals(i % 2 == 0 ? TestStates.IDLE : TestStates.TIMED_OUT, engines.get(i).getCurrentState());
+    }
+
+    @Test
+    public void advance_wheelIdleBeforeArming_shouldNotFireEarly() throws InterruptedException
+    {
+        //setup
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition(1000));
+        fsm.setTimingWheel(wheel);
+        fsm.start(TestStates.IDLE);
+        Thread.sleep(20);
+        long armed = System.nanoTime();
+        fsm.trigger(TestTriggers.REQUEST, null);
+
+        //test
+        Assert.assertEquals(0, wheel.advanceTo(armed + 999 * MILLI));
+        Assert.assertEquals(TestStates.WAITING, fsm.getCurrentState());
+    }
+
+    @Test
+    public void advance_timeoutTriggerThrows_shouldStillFireRestOfSlotThenThrow()
+    {
+        //setup, one second ticks so every timer lands in the same slot
+        long start = System.nanoTime();
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.SECONDS);
+        FsmDefinition<TestStates, TestTriggers> definition = definition(10);
+        List<FsmEngine<TestStates, TestTriggers>> engines = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+        {
+            FsmEngine<TestStates, TestTriggers> fsm = new FsmEngine<>(definition);
+            fsm.setTimingWheel(wheel);
+            fsm.start(TestStates.WAITING);
+            engines.add(fsm);
+        }
+        //armed last so fired first
+        FsmEngine<TestStates, TestTriggers> failing = new FsmEngine<>();
+        failing.defineCylinder(TestStates.WAITING).setTimeout(10, TimeUnit.MILLISECONDS, TestTriggers.TIMEOUT);
+        failing.defineCylinder(TestStates.TIMED_OUT).setEnterAction(new FsmEngine.Action()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("enter failed");
+            }
+        });
+        failing.defineTrigger(TestTriggers.TIMEOUT, TestStates.WAITING).setToState(TestStates.TIMED_OUT);
+        failing.setTimingWheel(wheel);
+        failing.start(TestStates.WAITING);
+
+        //test
+        try
+        {
+            wheel.advanceTo(start + 3000 * MILLI);
+            Assert.fail();
+        }
+        catch(RuntimeException e)
+        {
+            Assert.assertEquals("enter failed", e.getCause().getMessage());
+        }
+        for(FsmEngine<TestStates, TestTriggers> fsm : engines)
+            Assert.assertEquals(TestStates.TIMED_OUT, fsm.getCurrentState());
+        Assert.assertEquals(0, wheel.getScheduledCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void freeze_timeoutTriggerNotDefinedForState_shouldThrow()
+    {
+        //setup
+        FsmDefinition<TestStates, TestTriggers> definition = new FsmDefinition<>();
+        definition.defineCylinder(TestStates.IDLE).setTimeout(1, TimeUnit.SECONDS, TestTriggers.TIMEOUT);
+
+        //test
+        definition.freeze();
+    }
+}